@@ -0,0 +1,36 @@
+package demo.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 基准测试入口
+ * 不带参数时按1、4、16个线程依次运行{@link LockBenchmark}，结果写入lock-&lt;线程数&gt;.json；
+ * 带参数时直接交给jmh处理，例如 java -jar target/benchmarks.jar LockBenchmark -t 8 -p impl=cohort
+ */
+public class BenchmarkMain {
+    private static final int[] THREADS = {1, 4, 16};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        for (int threads : THREADS) {
+            run(threads);
+        }
+    }
+
+    private static void run(int threads) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(LockBenchmark.class.getSimpleName())
+                .threads(threads)
+                .resultFormat(ResultFormatType.JSON)
+                .result("lock-" + threads + ".json")
+                .build();
+        new Runner(options).run();
+    }
+}
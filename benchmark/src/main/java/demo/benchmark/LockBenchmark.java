@@ -0,0 +1,121 @@
+package demo.benchmark;
+
+import demo.ZKLock;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 加锁/释放锁基准测试
+ * 在进程内启动zk服务，对比{@link ZKLock}（普通模式、本地队列模式）与Curator的{@link InterProcessMutex}
+ * 的吞吐量和延迟分位数。资源数越少竞争越激烈，线程数由{@link BenchmarkMain}或jmh的-t参数指定
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class LockBenchmark {
+    /**
+     * 锁实现 zklock：ZKLock普通模式 cohort：ZKLock本地队列模式 curator：InterProcessMutex
+     */
+    @Param({"zklock", "cohort", "curator"})
+    public String impl;
+    /**
+     * 资源数
+     */
+    @Param({"1", "16"})
+    public int resources;
+
+    private TestingServer server;
+    private CuratorFramework client;
+    private Locker locker;
+
+    /**
+     * 加锁方式
+     */
+    interface Locker {
+        void lock(String resName) throws Exception;
+
+        void unLock(String resName) throws Exception;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = new TestingServer(true);
+        //ZKLock的会话池从系统参数中读取服务地址
+        System.setProperty("zklock.servers", server.getConnectString());
+        if ("zklock".equals(impl)) {
+            locker = zkLocker(ZKLock.getInstance());
+        } else if ("cohort".equals(impl)) {
+            locker = zkLocker(ZKLock.getCohortInstance());
+        } else if ("curator".equals(impl)) {
+            client = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(1000));
+            client.start();
+            locker = curatorLocker(client);
+        } else {
+            throw new IllegalArgumentException("impl: " + impl);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.close();
+        }
+        server.close();
+    }
+
+    @Benchmark
+    public void lockUnLock() throws Exception {
+        String resName = "bench" + ThreadLocalRandom.current().nextInt(resources);
+        locker.lock(resName);
+        locker.unLock(resName);
+    }
+
+    private static Locker zkLocker(final ZKLock lock) {
+        return new Locker() {
+            @Override
+            public void lock(String resName) {
+                lock.lock(resName);
+            }
+
+            @Override
+            public void unLock(String resName) {
+                lock.unLock(resName);
+            }
+        };
+    }
+
+    private static Locker curatorLocker(final CuratorFramework client) {
+        final ConcurrentMap<String, InterProcessMutex> mutexes = new ConcurrentHashMap<String, InterProcessMutex>();
+        return new Locker() {
+            @Override
+            public void lock(String resName) throws Exception {
+                InterProcessMutex mutex = mutexes.get(resName);
+                if (mutex == null) {
+                    InterProcessMutex created = new InterProcessMutex(client, "/curator/lock_" + resName);
+                    mutex = mutexes.putIfAbsent(resName, created);
+                    if (mutex == null) {
+                        mutex = created;
+                    }
+                }
+                mutex.acquire();
+            }
+
+            @Override
+            public void unLock(String resName) throws Exception {
+                mutexes.get(resName).release();
+            }
+        };
+    }
+}
@@ -0,0 +1,305 @@
+package demo;
+
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 锁资源节点的子节点索引
+ * 保存锁资源下所有临时有序节点的快照（按序号升序的long数组），本进程内的等待者共用一份，查找前序节点只需在本地二分查找。
+ * 等待者按前序节点的序号登记，本进程只对最早的等待者的前序节点注册一个exists监听：
+ * 锁只可能依次交给更早的等待者，所以一次释放只通知紧随其后的那一个进程，进程刷新快照后也只唤醒前序节点已被删除的等待者。
+ * 等待通过LockSupport挂起，不占用监视器，虚拟线程可以直接使用。
+ * 索引只在有线程加锁时保留，使用者计数归零后作废，由{@link ZKLock}移出缓存，资源很多时不会一直累积
+ */
+class ChildIndex implements Watcher, AsyncCallback.Children2Callback, AsyncCallback.StatCallback {
+    /**
+     * 前序查找结果 当前节点是最小的节点
+     */
+    static final long NONE = -1;
+    /**
+     * 前序查找结果 快照中没有当前节点
+     */
+    static final long UNKNOWN = -2;
+
+    private final ZooKeeper zk;
+    private final String lockPath;
+    private final LockMetrics metrics;
+    /**
+     * 子节点名称，按序号升序
+     */
+    private String[] names = new String[0];
+    /**
+     * 子节点序号，与names一一对应
+     */
+    private long[] seqs = new long[0];
+    /**
+     * 生成当前快照时锁资源节点的cversion，用于丢弃乱序到达的旧结果
+     */
+    private int cversion = -1;
+    /**
+     * 等待前序节点删除的线程 前序节点序号 -> 等待者，序号最小的即本进程最早的等待者
+     */
+    private final TreeMap<Long, Waiter> waiters = new TreeMap<Long, Waiter>();
+    /**
+     * 已注册exists监听的节点序号
+     */
+    private long watchedSeq = NONE;
+    /**
+     * 正在加锁的线程数
+     */
+    private int users;
+    /**
+     * 使用者计数归零后作废，不能再使用
+     */
+    private boolean retired;
+
+    ChildIndex(ZooKeeper zk, String lockPath, LockMetrics metrics) {
+        this.zk = zk;
+        this.lockPath = lockPath;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 登记一个使用者
+     *
+     * @return 索引已作废时返回false，需重新获取
+     */
+    synchronized boolean retain() {
+        if (retired) {
+            return false;
+        }
+        users++;
+        return true;
+    }
+
+    /**
+     * 注销一个使用者，计数归零时作废
+     * 作废后迟到的监听和回调只会刷新一次快照，没有等待者需要唤醒
+     *
+     * @return 是否已作废
+     */
+    synchronized boolean release() {
+        if (--users == 0) {
+            retired = true;
+        }
+        return retired;
+    }
+
+    /**
+     * 查找前序节点的序号
+     *
+     * @param seq 当前节点的序号
+     * @return 前序节点序号，当前节点最小时返回{@link #NONE}，快照中没有当前节点时返回{@link #UNKNOWN}
+     */
+    synchronized long predecessor(long seq) {
+        int index = Arrays.binarySearch(seqs, seq);
+        if (index < 0) {
+            return UNKNOWN;
+        }
+        return index == 0 ? NONE : seqs[index - 1];
+    }
+
+    /**
+     * 同步获取一次子节点，更新快照
+     */
+    void refresh() throws KeeperException, InterruptedException {
+        metrics.zkOps(1);
+        Stat stat = new Stat();
+        List<String> children = zk.getChildren(lockPath, false, stat);
+        update(children, stat);
+    }
+
+    /**
+     * 等待前序节点被删除
+     *
+     * @param preSeq       前序节点序号
+     * @param nanosTimeout 最长等待时间（纳秒），小于0表示一直等待
+     * @return 是否被唤醒，超时返回false
+     */
+    boolean awaitDeleted(long preSeq, long nanosTimeout) throws InterruptedException {
+        Waiter waiter = new Waiter();
+        synchronized (this) {
+            //前序节点在登记前已被删除
+            if (Arrays.binarySearch(seqs, preSeq) < 0) {
+                return true;
+            }
+            waiters.put(preSeq, waiter);
+            watchHead();
+        }
+        boolean signalled = false;
+        try {
+            signalled = waiter.park(nanosTimeout);
+            return signalled;
+        } finally {
+            if (!signalled) {
+                synchronized (this) {
+                    if (waiters.get(preSeq) == waiter) {
+                        waiters.remove(preSeq);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 对最早的等待者的前序节点注册exists监听，已注册过则跳过
+     * 旧的监听无法取消，触发后只会多刷新一次快照
+     */
+    private void watchHead() {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        long head = waiters.firstKey();
+        if (head == watchedSeq) {
+            return;
+        }
+        int index = Arrays.binarySearch(seqs, head);
+        if (index < 0) {
+            return;
+        }
+        watchedSeq = head;
+        metrics.zkOps(1);
+        zk.exists(lockPath + "/" + names[index], this, this, null);
+    }
+
+    /**
+     * 异步刷新快照
+     */
+    private void refreshAsync() {
+        metrics.zkOps(1);
+        zk.getChildren(lockPath, false, this, null);
+    }
+
+    /**
+     * 前序节点的监听
+     */
+    @Override
+    public void process(WatchedEvent watchedEvent) {
+        if (watchedEvent.getType() == Event.EventType.NodeDeleted) {
+            metrics.watchEvent();
+            synchronized (this) {
+                watchedSeq = NONE;
+            }
+            refreshAsync();
+        } else if (watchedEvent.getState() == Event.KeeperState.Expired) {
+            wakeAll();
+        }
+    }
+
+    /**
+     * exists回调
+     */
+    @Override
+    public void processResult(int rc, String path, Object ctx, Stat stat) {
+        if (rc == KeeperException.Code.NONODE.intValue()) {
+            //注册监听前节点已被删除
+            synchronized (this) {
+                watchedSeq = NONE;
+            }
+            refreshAsync();
+        } else if (rc != KeeperException.Code.OK.intValue()) {
+            wakeAll();
+        }
+    }
+
+    /**
+     * 异步获取子节点的回调
+     */
+    @Override
+    public void processResult(int rc, String path, Object ctx, List<String> children, Stat stat) {
+        if (rc == KeeperException.Code.OK.intValue()) {
+            update(children, stat);
+        } else {
+            wakeAll();
+        }
+    }
+
+    private void update(List<String> children, Stat stat) {
+        String[] sortedNames = children.toArray(new String[children.size()]);
+        Arrays.sort(sortedNames, ZKLock.SEQUENCE_ORDER);
+        long[] sorted = new long[sortedNames.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = ZKLock.sequenceOf(sortedNames[i]);
+        }
+        synchronized (this) {
+            if (stat.getCversion() < cversion) {
+                return;
+            }
+            cversion = stat.getCversion();
+            names = sortedNames;
+            seqs = sorted;
+            //只唤醒前序节点已不在快照中的等待者
+            Iterator<Map.Entry<Long, Waiter>> it = waiters.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Waiter> entry = it.next();
+                if (Arrays.binarySearch(sorted, entry.getKey()) < 0) {
+                    entry.getValue().signal();
+                    it.remove();
+                }
+            }
+            watchHead();
+        }
+    }
+
+    /**
+     * 会话失效或请求失败，唤醒所有等待者重新判断
+     */
+    private synchronized void wakeAll() {
+        cversion = -1;
+        watchedSeq = NONE;
+        for (Waiter waiter : waiters.values()) {
+            waiter.signal();
+        }
+        waiters.clear();
+    }
+
+    /**
+     * 等待者
+     */
+    private static class Waiter {
+        final Thread thread = Thread.currentThread();
+        volatile boolean signalled;
+
+        void signal() {
+            signalled = true;
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * 挂起直到被唤醒、超时或中断
+         *
+         * @param nanosTimeout 最长等待时间（纳秒），小于0表示一直等待
+         * @return 是否被唤醒
+         */
+        boolean park(long nanosTimeout) throws InterruptedException {
+            long deadline = System.nanoTime() + nanosTimeout;
+            while (!signalled) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (nanosTimeout < 0) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            return true;
+        }
+    }
+}
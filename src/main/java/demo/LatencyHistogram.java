@@ -0,0 +1,92 @@
+package demo;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图
+ * 按对数分段、段内再等分32格计数，相对误差约3%，占用固定的内存，可以多个线程同时记录。
+ * 不限定单位，读取结果与记录时的单位相同：压测按微秒记录，{@link LockMetrics}按纳秒记录
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * 记录一个值
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    long count() {
+        return count.get();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long total = count.get();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+
+    /**
+     * 分位数
+     *
+     * @param quantile 0-1之间，如0.99
+     */
+    long percentile(double quantile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(value(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long value) {
+        if (value < SUB) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+        return (exp - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /**
+     * 格子的代表值，取格子的中点
+     */
+    private static long value(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int exp = index / SUB + SUB_BITS - 1;
+        long width = 1L << (exp - SUB_BITS);
+        return (SUB + index % SUB) * width + width / 2;
+    }
+}
@@ -0,0 +1,126 @@
+package demo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 锁资源的性能指标
+ * 记录时只做原子累加，不分配对象；分位数只在读取时按直方图计算。
+ * 耗时以纳秒记录在{@link LatencyHistogram}中，读取时换算为微秒
+ */
+public class LockMetrics implements LockMetricsMXBean {
+    private final LatencyHistogram acquireTime = new LatencyHistogram();
+    private final LatencyHistogram holdTime = new LatencyHistogram();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder watchEvents = new LongAdder();
+    private final LongAdder wakeups = new LongAdder();
+    private final LongAdder zkOps = new LongAdder();
+
+    /**
+     * 开始加锁
+     *
+     * @return 开始时间
+     */
+    long beginAcquire() {
+        waiting.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * 加锁结束
+     *
+     * @param begin    开始时间
+     * @param acquired 是否获取到锁
+     */
+    void endAcquire(long begin, boolean acquired) {
+        waiting.decrementAndGet();
+        if (acquired) {
+            acquireTime.record(System.nanoTime() - begin);
+        } else {
+            failures.increment();
+        }
+    }
+
+    /**
+     * 释放锁
+     *
+     * @param acquiredAt 获取到锁的时间
+     */
+    void recordHold(long acquiredAt) {
+        holdTime.record(System.nanoTime() - acquiredAt);
+    }
+
+    void watchEvent() {
+        watchEvents.increment();
+    }
+
+    void wakeup() {
+        wakeups.increment();
+    }
+
+    void zkOps(int count) {
+        zkOps.add(count);
+    }
+
+    @Override
+    public long getAcquireCount() {
+        return acquireTime.count();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    @Override
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    @Override
+    public double getAcquireMeanMicros() {
+        return acquireTime.mean() / 1000;
+    }
+
+    @Override
+    public long getAcquireP50Micros() {
+        return acquireTime.percentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getAcquireP99Micros() {
+        return acquireTime.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getHoldP50Micros() {
+        return holdTime.percentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getHoldP99Micros() {
+        return holdTime.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getWatchEvents() {
+        return watchEvents.sum();
+    }
+
+    @Override
+    public long getWakeups() {
+        return wakeups.sum();
+    }
+
+    @Override
+    public long getZkOps() {
+        return zkOps.sum();
+    }
+
+    @Override
+    public double getZkOpsPerAcquire() {
+        long acquires = getAcquireCount();
+        return acquires == 0 ? 0 : (double) getZkOps() / acquires;
+    }
+}
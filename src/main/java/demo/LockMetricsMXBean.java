@@ -0,0 +1,67 @@
+package demo;
+
+/**
+ * 锁资源性能指标的JMX接口
+ * 时间单位均为微秒，分位数取所在直方图格子的中点，误差不超过格子宽度的一半
+ */
+public interface LockMetricsMXBean {
+    /**
+     * 成功加锁次数
+     */
+    long getAcquireCount();
+
+    /**
+     * 加锁失败（超时、中断、异常）次数
+     */
+    long getFailureCount();
+
+    /**
+     * 当前等待加锁的线程数
+     */
+    int getWaiting();
+
+    /**
+     * 加锁耗时 平均值
+     */
+    double getAcquireMeanMicros();
+
+    /**
+     * 加锁耗时 p50
+     */
+    long getAcquireP50Micros();
+
+    /**
+     * 加锁耗时 p99
+     */
+    long getAcquireP99Micros();
+
+    /**
+     * 持有锁的时间 p50
+     */
+    long getHoldP50Micros();
+
+    /**
+     * 持有锁的时间 p99
+     */
+    long getHoldP99Micros();
+
+    /**
+     * 前序节点监听触发次数
+     */
+    long getWatchEvents();
+
+    /**
+     * 等待线程被唤醒的次数
+     */
+    long getWakeups();
+
+    /**
+     * 访问zk的请求数
+     */
+    long getZkOps();
+
+    /**
+     * 平均每次成功加锁的zk请求数（含释放）
+     */
+    double getZkOpsPerAcquire();
+}
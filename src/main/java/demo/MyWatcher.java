@@ -4,32 +4,17 @@ import org.apache.zookeeper.*;
 
 import java.io.IOException;
 
+/**
+ * 打印收到的事件
+ * 监听由{@link WatchRegistry}注册和续订，这里不再在每次触发后同步调用exists/getChildren/getData重新注册
+ */
 public class MyWatcher implements Watcher {
-    private ZooKeeper zk;
-
-    public MyWatcher(ZooKeeper zk) {
-        this.zk = zk;
-    }
 
     @Override
     public void process(WatchedEvent watchedEvent) {
         String path = watchedEvent.getPath();
         Event.EventType type = watchedEvent.getType();
         log("watch! path:" + path + " type:" + type);
-
-        try {
-            if (Event.EventType.NodeDeleted != type) {
-                //再次添加监听（exists操作会对所有的操作都触发）
-                zk.exists(path, this);
-                zk.getChildren(path, this);
-                zk.getData(path, this, null);
-            }
-
-        } catch (KeeperException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
     }
 
     private static void log(String mess) {
@@ -41,7 +26,12 @@ public class MyWatcher implements Watcher {
         log("create node...");
         zk.create("/test", "test".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
         log(" add listener...");
-        zk.exists("/test", new MyWatcher(zk));
+        //数据监听和子节点监听，触发后由WatchRegistry续订
+        WatchRegistry registry = new WatchRegistry(zk);
+        MyWatcher watcher = new MyWatcher();
+        registry.addListener("/test", WatchRegistry.Type.DATA, watcher);
+        registry.addListener("/test", WatchRegistry.Type.CHILDREN, watcher);
+        Thread.sleep(500);
         log("update data...");
         zk.setData("/test", "abc".getBytes(), -1);
         log("update data...");
@@ -52,9 +42,10 @@ public class MyWatcher implements Watcher {
         zk.delete("/test/child", -1);
         Thread.sleep(1000);
         log("delete node...");
-        zk.delete("/te1st", -1);
+        zk.delete("/test", -1);
 
         Thread.sleep(1000);
+        registry.close();
 //        zk.close();
     }
 }
@@ -0,0 +1,224 @@
+package demo;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 节点数据的编解码
+ * 编码后的数据带一个很短的头：魔数0xC0、版本和标志、序列化方式编号，压缩时再加上原始长度（变长整数）。
+ * 0xC0在UTF-8中不会出现，原来直接getBytes()写入的文本不会被误认为编码后的数据，读取时没有头的数据按原始字节交给序列化方式，
+ * 新旧格式可以混用。超过阈值的数据用deflate压缩，压缩后没有变小时按原样保存。
+ * 序列化方式可以自定义，解码时直接从节点数据的字节数组中读取，未压缩的数据不再复制
+ */
+public class PayloadCodec {
+    /**
+     * 序列化方式
+     */
+    public interface Serializer<T> {
+        /**
+         * 编号，写在头中，0-255
+         */
+        int id();
+
+        byte[] serialize(T value);
+
+        /**
+         * 从buf的[offset, offset+length)反序列化
+         */
+        T deserialize(byte[] buf, int offset, int length);
+    }
+
+    /**
+     * 原始字节
+     */
+    public static final Serializer<byte[]> BYTES = new Serializer<byte[]>() {
+        @Override
+        public int id() {
+            return 0;
+        }
+
+        @Override
+        public byte[] serialize(byte[] value) {
+            return value;
+        }
+
+        @Override
+        public byte[] deserialize(byte[] buf, int offset, int length) {
+            return offset == 0 && length == buf.length ? buf : Arrays.copyOfRange(buf, offset, offset + length);
+        }
+    };
+
+    /**
+     * UTF-8文本
+     */
+    public static final Serializer<String> STRING = new Serializer<String>() {
+        @Override
+        public int id() {
+            return 1;
+        }
+
+        @Override
+        public byte[] serialize(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(byte[] buf, int offset, int length) {
+            return new String(buf, offset, length, StandardCharsets.UTF_8);
+        }
+    };
+
+    private static final int MAGIC = 0xC0;
+    private static final int VERSION = 1;
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int HEADER = 3;
+    /**
+     * 解压后的最大长度，防止错误的长度字段申请过大的内存
+     */
+    private static final int MAX_DECODED = 64 * 1024 * 1024;
+
+    private final int compressThreshold;
+
+    /**
+     * @param compressThreshold 序列化后超过该字节数时压缩
+     */
+    public PayloadCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    /**
+     * 编码
+     *
+     * @return 写入节点的数据
+     */
+    public <T> byte[] encode(T value, Serializer<T> serializer) {
+        byte[] raw = serializer.serialize(value);
+        if (raw.length > compressThreshold) {
+            byte[] compressed = compress(raw, serializer.id());
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+        byte[] out = new byte[HEADER + raw.length];
+        writeHeader(out, 0, serializer.id());
+        System.arraycopy(raw, 0, out, HEADER, raw.length);
+        return out;
+    }
+
+    public byte[] encode(String value) {
+        return encode(value, STRING);
+    }
+
+    /**
+     * 解码，没有头的数据按原始字节反序列化
+     *
+     * @param data 节点数据，可以为空
+     */
+    public static <T> T decode(byte[] data, Serializer<T> serializer) {
+        if (data == null) {
+            return null;
+        }
+        if (!isEncoded(data)) {
+            return serializer.deserialize(data, 0, data.length);
+        }
+        int id = data[2] & 0xff;
+        if (id != serializer.id()) {
+            throw new IllegalArgumentException("serializer mismatch: " + id + " != " + serializer.id());
+        }
+        if ((data[1] & FLAG_COMPRESSED) == 0) {
+            return serializer.deserialize(data, HEADER, data.length - HEADER);
+        }
+        //读取变长的原始长度
+        int length = 0;
+        int pos = HEADER;
+        for (int shift = 0; ; shift += 7) {
+            if (pos == data.length || shift > 28) {
+                throw new IllegalArgumentException("corrupt length");
+            }
+            byte b = data[pos++];
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > MAX_DECODED) {
+            throw new IllegalArgumentException("decoded length out of range: " + length);
+        }
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, pos, data.length - pos);
+            int n = 0;
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(raw, n, length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary() || n == length)) {
+                    throw new IllegalArgumentException("corrupt compressed data");
+                }
+                n += inflated;
+            }
+            if (n != length) {
+                throw new IllegalArgumentException("corrupt compressed data");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("corrupt compressed data", e);
+        } finally {
+            inflater.end();
+        }
+        return serializer.deserialize(raw, 0, length);
+    }
+
+    public static String decodeString(byte[] data) {
+        return decode(data, STRING);
+    }
+
+    /**
+     * 是否为编码后的数据
+     */
+    public static boolean isEncoded(byte[] data) {
+        return data != null && data.length >= HEADER && (data[0] & 0xff) == MAGIC && (data[1] & 0xff) >> 4 == VERSION;
+    }
+
+    /**
+     * 压缩，结果不比原始数据小时返回空
+     */
+    private static byte[] compress(byte[] raw, int id) {
+        if (raw.length <= HEADER + 5) {
+            return null;
+        }
+        byte[] out = new byte[raw.length];
+        writeHeader(out, FLAG_COMPRESSED, id);
+        int pos = HEADER;
+        for (int length = raw.length; ; length >>>= 7) {
+            if (length < 0x80) {
+                out[pos++] = (byte) length;
+                break;
+            }
+            out[pos++] = (byte) (length & 0x7f | 0x80);
+        }
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            //输出空间只有原始长度，放不下说明压缩没有收益
+            while (!deflater.finished()) {
+                if (pos == out.length) {
+                    return null;
+                }
+                pos += deflater.deflate(out, pos, out.length - pos);
+            }
+            return Arrays.copyOf(out, pos);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeHeader(byte[] out, int flags, int id) {
+        out[0] = (byte) MAGIC;
+        out[1] = (byte) (VERSION << 4 | flags);
+        out[2] = (byte) id;
+    }
+}
@@ -0,0 +1,347 @@
+package demo;
+
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 监听复用
+ * 同一个会话中，每个路径的每种监听（数据/子节点）只向zk注册一次，本地可以挂任意多个监听者，事件到达后分发给所有监听者。
+ * 监听触发后自动续订：续订请求由一个线程批量连续发出，同一路径在续订前的多次触发合并为一次；
+ * 续订成功后才把事件分发给监听者，监听者在回调中重新读取时，之后的变化一定会再次通知，不会漏掉。
+ * zk 3.4不支持取消监听，最后一个监听者移除后，已注册的监听在下次触发时丢弃
+ */
+public class WatchRegistry implements Watcher {
+    /**
+     * 监听类型
+     */
+    public enum Type {
+        /**
+         * 数据监听，通过exists注册，节点创建、数据变化、删除时触发
+         */
+        DATA,
+        /**
+         * 子节点监听，通过getChildren注册，子节点变化、节点删除时触发
+         */
+        CHILDREN
+    }
+
+    private final ZooKeeper zk;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    /**
+     * 待续订的监听
+     */
+    private final Set<Entry> pending = new LinkedHashSet<Entry>();
+    private final ExecutorService renewer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "watch-renewer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicLong registrations = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+
+    public WatchRegistry(ZooKeeper zk) {
+        this.zk = zk;
+    }
+
+    /**
+     * 添加监听者，该路径该类型的第一个监听者会触发向zk注册
+     *
+     * @param path     节点路径
+     * @param type     监听类型
+     * @param listener 监听者，收到的事件与直接向zk注册时相同
+     */
+    public void addListener(String path, Type type, Watcher listener) {
+        String key = key(path, type);
+        Entry entry;
+        while (true) {
+            entry = entries.get(key);
+            if (entry == null) {
+                Entry created = new Entry(path, type);
+                entry = entries.putIfAbsent(key, created);
+                if (entry == null) {
+                    entry = created;
+                }
+            }
+            entry.listeners.add(listener);
+            //与removeListener并发时监听已被移除，重新创建
+            if (entries.get(key) == entry) {
+                break;
+            }
+        }
+        synchronized (entry) {
+            if (entry.armed || entry.renewing) {
+                return;
+            }
+        }
+        schedule(entry, null);
+    }
+
+    /**
+     * 移除监听者
+     */
+    public void removeListener(String path, Type type, Watcher listener) {
+        String key = key(path, type);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.listeners.remove(listener);
+            if (entry.listeners.isEmpty()) {
+                entries.remove(key, entry);
+            }
+        }
+    }
+
+    /**
+     * 向zk注册的次数，包括首次注册和续订
+     */
+    public long getRegistrations() {
+        return registrations.get();
+    }
+
+    /**
+     * 从zk收到的事件数
+     */
+    public long getEvents() {
+        return events.get();
+    }
+
+    /**
+     * 当前复用的监听数
+     */
+    public int getWatchCount() {
+        return entries.size();
+    }
+
+    public void close() {
+        renewer.shutdownNow();
+        entries.clear();
+    }
+
+    @Override
+    public void process(WatchedEvent watchedEvent) {
+        if (watchedEvent.getType() == Event.EventType.None) {
+            //连接状态变化通知每个监听者一次
+            Set<Watcher> notified = new LinkedHashSet<Watcher>();
+            for (Entry entry : entries.values()) {
+                notified.addAll(entry.listeners);
+            }
+            for (Watcher listener : notified) {
+                dispatch(listener, watchedEvent);
+            }
+            //连接恢复后重新注册续订失败的监听
+            if (watchedEvent.getState() == Event.KeeperState.SyncConnected) {
+                for (Entry entry : entries.values()) {
+                    boolean lost;
+                    synchronized (entry) {
+                        lost = !entry.armed && !entry.renewing;
+                    }
+                    if (lost) {
+                        schedule(entry, null);
+                    }
+                }
+            }
+            return;
+        }
+        events.incrementAndGet();
+        String path = watchedEvent.getPath();
+        switch (watchedEvent.getType()) {
+            case NodeCreated:
+            case NodeDataChanged:
+                fired(entries.get(key(path, Type.DATA)), watchedEvent);
+                //子节点监听在节点不存在时以exists等待创建
+                fired(entries.get(key(path, Type.CHILDREN)), watchedEvent);
+                break;
+            case NodeChildrenChanged:
+                fired(entries.get(key(path, Type.CHILDREN)), watchedEvent);
+                break;
+            case NodeDeleted:
+                fired(entries.get(key(path, Type.DATA)), watchedEvent);
+                fired(entries.get(key(path, Type.CHILDREN)), watchedEvent);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 监听触发，等待续订后分发
+     */
+    private void fired(Entry entry, WatchedEvent watchedEvent) {
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            //子节点监听正常注册时，数据变化事件不属于它
+            if (entry.type == Type.CHILDREN && !entry.awaitingCreate
+                    && watchedEvent.getType() != Event.EventType.NodeChildrenChanged
+                    && watchedEvent.getType() != Event.EventType.NodeDeleted) {
+                return;
+            }
+            entry.armed = false;
+        }
+        schedule(entry, watchedEvent);
+    }
+
+    /**
+     * 加入待续订队列，队列由空变为非空时提交一次批量续订
+     */
+    private void schedule(Entry entry, WatchedEvent watchedEvent) {
+        boolean submit;
+        synchronized (entry) {
+            if (watchedEvent != null) {
+                entry.event = watchedEvent;
+            }
+            entry.renewing = true;
+        }
+        synchronized (pending) {
+            submit = pending.isEmpty();
+            pending.add(entry);
+        }
+        if (submit) {
+            renewer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * 把队列中的续订请求连续发出，不等待往返
+     */
+    private void flush() {
+        List<Entry> batch;
+        synchronized (pending) {
+            batch = new ArrayList<Entry>(pending);
+            pending.clear();
+        }
+        for (Entry entry : batch) {
+            if (entries.get(key(entry.path, entry.type)) != entry) {
+                continue;
+            }
+            registrations.incrementAndGet();
+            boolean awaitingCreate;
+            synchronized (entry) {
+                awaitingCreate = entry.awaitingCreate;
+            }
+            if (entry.type == Type.DATA || awaitingCreate) {
+                zk.exists(entry.path, this, entry, null);
+            } else {
+                zk.getChildren(entry.path, this, entry, null);
+            }
+        }
+    }
+
+    private static void dispatch(Watcher listener, WatchedEvent watchedEvent) {
+        try {
+            listener.process(watchedEvent);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String key(String path, Type type) {
+        return type == Type.DATA ? "d" + path : "c" + path;
+    }
+
+    /**
+     * 一个路径一种类型的监听
+     */
+    private class Entry implements AsyncCallback.StatCallback, AsyncCallback.ChildrenCallback {
+        final String path;
+        final Type type;
+        final List<Watcher> listeners = new CopyOnWriteArrayList<Watcher>();
+        /**
+         * zk中是否已注册
+         */
+        boolean armed;
+        /**
+         * 是否在续订中
+         */
+        boolean renewing;
+        /**
+         * 子节点监听的节点不存在，暂以exists等待创建
+         */
+        boolean awaitingCreate;
+        /**
+         * 续订后待分发的事件
+         */
+        WatchedEvent event;
+
+        Entry(String path, Type type) {
+            this.path = path;
+            this.type = type;
+        }
+
+        /**
+         * exists回调，节点不存在时也会注册监听
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            if (rc == KeeperException.Code.OK.intValue() && type == Type.CHILDREN) {
+                //等待中的节点已经创建，改为注册子节点监听
+                synchronized (this) {
+                    awaitingCreate = false;
+                }
+                schedule(this, null);
+                return;
+            }
+            renewed(rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NONODE.intValue());
+        }
+
+        /**
+         * getChildren回调
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children) {
+            if (rc == KeeperException.Code.NONODE.intValue()) {
+                synchronized (this) {
+                    awaitingCreate = true;
+                }
+                schedule(this, null);
+                return;
+            }
+            renewed(rc == KeeperException.Code.OK.intValue());
+        }
+
+        /**
+         * 续订完成后分发事件；续订失败（如连接断开）时保留事件，连接恢复后重新续订
+         */
+        private void renewed(boolean ok) {
+            WatchedEvent fired = null;
+            synchronized (this) {
+                armed = ok;
+                renewing = false;
+                if (ok) {
+                    fired = event;
+                    event = null;
+                }
+            }
+            if (fired != null) {
+                for (Watcher listener : listeners) {
+                    dispatch(listener, fired);
+                }
+            }
+        }
+    }
+}
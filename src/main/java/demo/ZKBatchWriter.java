@@ -0,0 +1,289 @@
+package demo;
+
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合并写入
+ * 同一路径在一个时间窗口内连续的多次不校验版本的setData只保留最后一次（后写覆盖），
+ * 带版本校验的写入不与其他写入合并，按写入顺序排在该路径之前的写入之后提交，版本校验在之前的写入生效后进行，
+ * 各自的结果只反映自己的校验。
+ * 不同路径的写入在窗口结束时放进一个multi事务一起提交，状态、心跳这类高频覆盖写只需一次提交。
+ * 事务中某个写入失败（如版本不符）时，只让该写入失败，其余写入重新提交。
+ * 一个窗口的写入按jute序列化格式估算大小分成多个事务，保证每次请求不超过jute.maxbuffer，否则服务端会直接断开连接。
+ * 写入结果通过CompletableFuture返回，被覆盖的写入与覆盖它的写入一起完成
+ */
+public class ZKBatchWriter {
+    /**
+     * jute.maxbuffer的默认值
+     */
+    private static final int DEFAULT_MAX_BUFFER = 0xfffff;
+    /**
+     * 请求头等固定开销的预留
+     */
+    private static final int HEADROOM = 1024;
+
+    private final ZooKeeper zk;
+    private final long windowMillis;
+    private final int maxBytes;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "batch-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /**
+     * 当前窗口中按写入顺序待提交的写入，在该对象上加锁
+     */
+    private List<PendingWrite> pending = new ArrayList<PendingWrite>();
+    /**
+     * 当前窗口中每个路径最后一个待提交的写入 路径 -> 写入，在该对象上加锁
+     */
+    private Map<String, PendingWrite> lastWrites = new HashMap<String, PendingWrite>();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+
+    /**
+     * @param zk           zk 连接
+     * @param windowMillis 合并窗口（毫秒），窗口内第一次写入后开始计时
+     */
+    public ZKBatchWriter(ZooKeeper zk, long windowMillis) {
+        this(zk, windowMillis, Integer.getInteger("jute.maxbuffer", DEFAULT_MAX_BUFFER) - HEADROOM);
+    }
+
+    /**
+     * @param zk           zk 连接
+     * @param windowMillis 合并窗口（毫秒），窗口内第一次写入后开始计时
+     * @param maxBytes     每个事务请求的最大字节数
+     */
+    public ZKBatchWriter(ZooKeeper zk, long windowMillis, int maxBytes) {
+        this.zk = zk;
+        this.windowMillis = windowMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 写入数据，不校验版本
+     */
+    public CompletableFuture<Stat> write(String path, byte[] data) {
+        return write(path, data, -1);
+    }
+
+    /**
+     * 写入数据
+     *
+     * @param version 期望的版本，-1表示不校验
+     * @return 提交后的节点状态，单个写入超过事务大小上限时直接失败
+     */
+    public CompletableFuture<Stat> write(String path, byte[] data, int version) {
+        writes.incrementAndGet();
+        CompletableFuture<Stat> future = new CompletableFuture<Stat>();
+        int size = estimateSize(path, data);
+        if (size > maxBytes) {
+            future.completeExceptionally(new IllegalArgumentException("write too large: " + path + " " + size + " bytes"));
+            return future;
+        }
+        boolean schedule;
+        synchronized (this) {
+            schedule = pending.isEmpty();
+            PendingWrite write = lastWrites.get(path);
+            if (write != null && write.version == -1 && version == -1) {
+                write.data = data;
+                write.futures.add(future);
+                coalesced.incrementAndGet();
+            } else {
+                //带版本校验的写入单独排队，multi中的操作按顺序执行，校验在该路径之前的写入之后进行
+                write = new PendingWrite(path, data, version, future);
+                pending.add(write);
+                lastWrites.put(path, write);
+            }
+        }
+        if (schedule) {
+            flusher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    commit();
+                }
+            }, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    /**
+     * 立即提交当前窗口的写入
+     */
+    public void flush() {
+        flusher.execute(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+            }
+        });
+    }
+
+    /**
+     * 提交剩余写入后停止
+     */
+    public void close() throws InterruptedException {
+        flush();
+        flusher.shutdown();
+        flusher.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 收到的写入数
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * 被后续不校验版本的写入覆盖的写入数
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * 提交的事务数
+     */
+    public long getCommits() {
+        return commits.get();
+    }
+
+    /**
+     * 取出当前窗口的写入，按估算大小分批提交，只在flusher线程中执行
+     */
+    private void commit() {
+        List<PendingWrite> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<PendingWrite>();
+            lastWrites = new HashMap<String, PendingWrite>();
+        }
+        List<PendingWrite> chunk = new ArrayList<PendingWrite>();
+        int bytes = 0;
+        for (PendingWrite write : batch) {
+            int size = estimateSize(write.path, write.data);
+            if (bytes + size > maxBytes && !chunk.isEmpty()) {
+                commit(chunk);
+                chunk = new ArrayList<PendingWrite>();
+                bytes = 0;
+            }
+            chunk.add(write);
+            bytes += size;
+        }
+        if (!chunk.isEmpty()) {
+            commit(chunk);
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) {
+        while (!batch.isEmpty()) {
+            List<Op> ops = new ArrayList<Op>(batch.size());
+            for (PendingWrite write : batch) {
+                ops.add(Op.setData(write.path, write.data, write.version));
+            }
+            commits.incrementAndGet();
+            try {
+                List<OpResult> results = zk.multi(ops);
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).complete(((OpResult.SetDataResult) results.get(i)).getStat());
+                }
+                return;
+            } catch (KeeperException e) {
+                List<OpResult> results = e.getResults();
+                if (results == null) {
+                    //连接异常等，无法确定是哪个写入的问题
+                    failAll(batch, e);
+                    return;
+                }
+                //去掉失败的写入，其余重新提交
+                int size = batch.size();
+                Iterator<PendingWrite> it = batch.iterator();
+                for (OpResult result : results) {
+                    PendingWrite write = it.next();
+                    int code = ((OpResult.ErrorResult) result).getErr();
+                    if (code != KeeperException.Code.OK.intValue()
+                            && code != KeeperException.Code.RUNTIMEINCONSISTENCY.intValue()) {
+                        write.fail(KeeperException.create(KeeperException.Code.get(code), write.path));
+                        it.remove();
+                    }
+                }
+                if (batch.size() == size) {
+                    failAll(batch, e);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failAll(batch, e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 估算setData在multi中jute序列化后的字节数：multi头（类型、结束标记、错误码）加上路径、数据和版本
+     */
+    private static int estimateSize(String path, byte[] data) {
+        return 4 + 1 + 4 + 4 + path.getBytes(StandardCharsets.UTF_8).length + 4 + (data == null ? 0 : data.length) + 4;
+    }
+
+    private static void failAll(List<PendingWrite> batch, Exception e) {
+        for (PendingWrite write : batch) {
+            write.fail(e);
+        }
+    }
+
+    /**
+     * 一个路径待提交的写入
+     */
+    private static class PendingWrite {
+        final String path;
+        byte[] data;
+        int version;
+        final List<CompletableFuture<Stat>> futures = new ArrayList<CompletableFuture<Stat>>(1);
+
+        PendingWrite(String path, byte[] data, int version, CompletableFuture<Stat> future) {
+            this.path = path;
+            this.data = data;
+            this.version = version;
+            this.futures.add(future);
+        }
+
+        void complete(Stat stat) {
+            for (CompletableFuture<Stat> future : futures) {
+                future.complete(stat);
+            }
+        }
+
+        void fail(Exception e) {
+            for (CompletableFuture<Stat> future : futures) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
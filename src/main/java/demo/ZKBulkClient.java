@@ -0,0 +1,301 @@
+package demo;
+
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 批量操作客户端
+ * 基于zk的异步回调接口，把一批create/getData/setData/exists/getChildren/delete连续发出而不是逐个等待往返，同时最多有window个请求在途。
+ * 同一会话的请求按发送顺序处理，所以先父后子的create、先子后父的delete可以放在同一批中。
+ * 结果按传入顺序返回，单个节点失败不影响其他节点，失败原因记录在对应的结果中。
+ * 回调在zk的事件线程中执行，不能在监听或回调中调用批量操作
+ */
+public class ZKBulkClient {
+    /**
+     * 默认的在途请求上限
+     */
+    public static final int DEFAULT_WINDOW = 1000;
+
+    private final ZooKeeper zk;
+    private final int window;
+
+    public ZKBulkClient(ZooKeeper zk) {
+        this(zk, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param zk     zk 连接
+     * @param window 在途请求上限
+     */
+    public ZKBulkClient(ZooKeeper zk, int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window: " + window);
+        }
+        this.zk = zk;
+        this.window = window;
+    }
+
+    /**
+     * 批量创建节点
+     *
+     * @param nodes 节点路径 -> 节点数据，按迭代顺序发送
+     * @param mode  节点类型
+     * @return 创建结果，值为实际创建的路径
+     */
+    public List<Result<String>> createAll(Map<String, byte[]> nodes, final CreateMode mode)
+            throws InterruptedException {
+        final List<String> paths = new ArrayList<String>(nodes.keySet());
+        final List<byte[]> data = new ArrayList<byte[]>(nodes.values());
+        return execute(paths, new Operation<String>() {
+            @Override
+            public void send(final int i, final Batch<String> batch) {
+                zk.create(paths.get(i), data.get(i), ZooDefs.Ids.OPEN_ACL_UNSAFE, mode,
+                        new AsyncCallback.StringCallback() {
+                            @Override
+                            public void processResult(int rc, String path, Object ctx, String name) {
+                                batch.complete(i, rc, name, null);
+                            }
+                        }, null);
+            }
+        });
+    }
+
+    /**
+     * 批量获取节点数据
+     *
+     * @param paths 节点路径
+     * @return 获取结果，值为节点数据，同时带有节点状态
+     */
+    public List<Result<byte[]>> getAll(Collection<String> paths) throws InterruptedException {
+        final List<String> list = new ArrayList<String>(paths);
+        return execute(list, new Operation<byte[]>() {
+            @Override
+            public void send(final int i, final Batch<byte[]> batch) {
+                zk.getData(list.get(i), false, new AsyncCallback.DataCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+                        batch.complete(i, rc, data, stat);
+                    }
+                }, null);
+            }
+        });
+    }
+
+    /**
+     * 批量更新节点数据，强制更新不校验版本
+     *
+     * @param nodes 节点路径 -> 节点数据，按迭代顺序发送
+     * @return 更新结果，值为更新后的状态
+     */
+    public List<Result<Stat>> setAll(Map<String, byte[]> nodes) throws InterruptedException {
+        final List<String> paths = new ArrayList<String>(nodes.keySet());
+        final List<byte[]> data = new ArrayList<byte[]>(nodes.values());
+        return execute(paths, new Operation<Stat>() {
+            @Override
+            public void send(final int i, final Batch<Stat> batch) {
+                zk.setData(paths.get(i), data.get(i), -1, new AsyncCallback.StatCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, Stat stat) {
+                        batch.complete(i, rc, stat, stat);
+                    }
+                }, null);
+            }
+        });
+    }
+
+    /**
+     * 批量获取节点状态，节点不存在时结果为NONODE
+     *
+     * @param paths 节点路径
+     * @return 获取结果，值为节点状态
+     */
+    public List<Result<Stat>> existsAll(Collection<String> paths) throws InterruptedException {
+        final List<String> list = new ArrayList<String>(paths);
+        return execute(list, new Operation<Stat>() {
+            @Override
+            public void send(final int i, final Batch<Stat> batch) {
+                zk.exists(list.get(i), false, new AsyncCallback.StatCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, Stat stat) {
+                        batch.complete(i, rc, stat, stat);
+                    }
+                }, null);
+            }
+        });
+    }
+
+    /**
+     * 批量获取子节点
+     *
+     * @param paths 节点路径
+     * @return 获取结果，值为子节点名称，同时带有节点状态
+     */
+    public List<Result<List<String>>> getChildrenAll(Collection<String> paths) throws InterruptedException {
+        final List<String> list = new ArrayList<String>(paths);
+        return execute(list, new Operation<List<String>>() {
+            @Override
+            public void send(final int i, final Batch<List<String>> batch) {
+                zk.getChildren(list.get(i), false, new AsyncCallback.Children2Callback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, List<String> children, Stat stat) {
+                        batch.complete(i, rc, children, stat);
+                    }
+                }, null);
+            }
+        });
+    }
+
+    /**
+     * 批量删除节点，强制删除不校验版本
+     *
+     * @param paths 节点路径，子节点需排在父节点之前
+     * @return 删除结果
+     */
+    public List<Result<Void>> deleteAll(Collection<String> paths) throws InterruptedException {
+        final List<String> list = new ArrayList<String>(paths);
+        return execute(list, new Operation<Void>() {
+            @Override
+            public void send(final int i, final Batch<Void> batch) {
+                zk.delete(list.get(i), -1, new AsyncCallback.VoidCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx) {
+                        batch.complete(i, rc, null, null);
+                    }
+                }, null);
+            }
+        });
+    }
+
+    /**
+     * 按顺序发送一批请求，在途请求达到上限时等待先发出的请求返回
+     * 中断时不再发送新请求，但会等已发出的请求全部返回后再抛出，避免在途请求超出上限
+     */
+    private <T> List<Result<T>> execute(List<String> paths, Operation<T> operation) throws InterruptedException {
+        Batch<T> batch = new Batch<T>(paths, window);
+        int sent = 0;
+        boolean interrupted = false;
+        try {
+            for (; sent < paths.size(); sent++) {
+                batch.inflight.acquire();
+                operation.send(sent, batch);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        //未发出的请求不计入等待
+        for (int i = sent; i < paths.size(); i++) {
+            batch.done.countDown();
+        }
+        while (true) {
+            try {
+                batch.done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            throw new InterruptedException();
+        }
+        return Collections.unmodifiableList(Arrays.asList(batch.results));
+    }
+
+    /**
+     * 单个请求的发送方式
+     */
+    private interface Operation<T> {
+        /**
+         * 异步发送第i个请求，回调中调用{@link Batch#complete}
+         */
+        void send(int i, Batch<T> batch);
+    }
+
+    /**
+     * 一批请求的执行状态
+     */
+    private static class Batch<T> {
+        final List<String> paths;
+        final Result<T>[] results;
+        final Semaphore inflight;
+        final CountDownLatch done;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Batch(List<String> paths, int window) {
+            this.paths = paths;
+            this.results = new Result[paths.size()];
+            this.inflight = new Semaphore(window);
+            this.done = new CountDownLatch(paths.size());
+        }
+
+        void complete(int i, int rc, T value, Stat stat) {
+            results[i] = new Result<T>(paths.get(i), KeeperException.Code.get(rc), value, stat);
+            inflight.release();
+            done.countDown();
+        }
+    }
+
+    /**
+     * 单个节点的操作结果
+     */
+    public static class Result<T> {
+        private final String path;
+        private final KeeperException.Code code;
+        private final T value;
+        private final Stat stat;
+
+        Result(String path, KeeperException.Code code, T value, Stat stat) {
+            this.path = path;
+            this.code = code;
+            this.value = value;
+            this.stat = stat;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public KeeperException.Code getCode() {
+            return code;
+        }
+
+        public boolean isOk() {
+            return code == KeeperException.Code.OK;
+        }
+
+        /**
+         * 获取结果值，失败时抛出对应的异常
+         */
+        public T get() throws KeeperException {
+            if (!isOk()) {
+                throw KeeperException.create(code, path);
+            }
+            return value;
+        }
+
+        /**
+         * 节点状态，操作不返回状态或失败时为空
+         */
+        public Stat getStat() {
+            return stat;
+        }
+
+        @Override
+        public String toString() {
+            return path + " " + code;
+        }
+    }
+}
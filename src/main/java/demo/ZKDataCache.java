@@ -0,0 +1,324 @@
+package demo;
+
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * getData的读穿透缓存
+ * 未命中时带数据监听读取并缓存，节点数据变化或删除时监听触发，删除缓存项，下次读取再从zk获取；命中时不访问zk。
+ * 缓存按数据字节数限制大小，超出时淘汰最久未访问的项。
+ * 读取中的项先占位，同一路径的并发读取等待第一个读取的结果；读取期间监听已触发时，读到的数据不进入缓存。
+ * 连接断开期间收不到失效通知，断开前缓存的项在之后第一次读取时用exists比较mzxid，未变化才继续使用。
+ * 需要读到调用之前所有已提交的修改时使用sync读取：先sync，之前修改的失效通知一定在sync回调之前处理完
+ */
+public class ZKDataCache implements Watcher {
+    /**
+     * 每个缓存项除数据外的估算开销
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final ZooKeeper zk;
+    private final long maxBytes;
+    /**
+     * 路径 -> 缓存项，按访问顺序排列，所有访问在this上加锁
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+    /**
+     * 连接断开的次数，缓存项校验时的值小于它时需要重新校验
+     */
+    private long disconnects;
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long evictions;
+    private long validations;
+
+    /**
+     * @param zk       zk 连接，缓存的监听注册在该连接上
+     * @param maxBytes 缓存数据的最大字节数
+     */
+    public ZKDataCache(ZooKeeper zk, long maxBytes) {
+        this.zk = zk;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 读取数据，优先使用缓存
+     *
+     * @param stat 不为空时填入节点状态
+     */
+    public byte[] getData(String path, Stat stat) throws KeeperException, InterruptedException {
+        return getData(path, stat, false);
+    }
+
+    /**
+     * 读取数据
+     *
+     * @param sync 是否先sync，保证读到调用之前所有已提交的修改
+     */
+    public byte[] getData(String path, Stat stat, boolean sync) throws KeeperException, InterruptedException {
+        if (sync) {
+            sync(path);
+        }
+        while (true) {
+            Entry entry;
+            boolean load = false;
+            boolean loading = false;
+            long epoch;
+            synchronized (this) {
+                epoch = disconnects;
+                entry = entries.get(path);
+                if (entry == null) {
+                    entry = new Entry();
+                    entries.put(path, entry);
+                    misses++;
+                    load = true;
+                } else if (!entry.loaded) {
+                    loading = true;
+                } else if (entry.validated == epoch) {
+                    hits++;
+                    return copy(entry, stat);
+                }
+            }
+            if (load) {
+                return load(path, entry, stat);
+            }
+            if (loading) {
+                //等待同一路径正在进行的读取
+                entry.done.await();
+            } else {
+                validate(path, entry, epoch);
+            }
+        }
+    }
+
+    /**
+     * 删除缓存项
+     */
+    public synchronized void invalidate(String path) {
+        remove(path);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 缓存占用的估算字节数
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * 监听触发删除的项数
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * 超出大小淘汰的项数
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * 断开连接后用mzxid校验的次数
+     */
+    public synchronized long getValidations() {
+        return validations;
+    }
+
+    @Override
+    public void process(WatchedEvent watchedEvent) {
+        switch (watchedEvent.getType()) {
+            case NodeDataChanged:
+            case NodeDeleted:
+                synchronized (this) {
+                    if (remove(watchedEvent.getPath())) {
+                        invalidations++;
+                    }
+                }
+                break;
+            case None:
+                synchronized (this) {
+                    if (watchedEvent.getState() == Event.KeeperState.Disconnected) {
+                        disconnects++;
+                    } else if (watchedEvent.getState() == Event.KeeperState.Expired) {
+                        //会话过期后监听全部失效
+                        entries.clear();
+                        bytes = 0;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 带监听读取，占位仍在时放入缓存
+     * 无论读取是否成功都唤醒等待的读取，失败时移除占位
+     */
+    private byte[] load(String path, Entry entry, Stat stat) throws KeeperException, InterruptedException {
+        boolean loaded = false;
+        try {
+            Stat fetched = new Stat();
+            byte[] data = zk.getData(path, this, fetched);
+            synchronized (this) {
+                //占位被移除说明读取期间监听已触发，数据可能已过期
+                if (entries.get(path) == entry) {
+                    entry.data = data;
+                    entry.stat = fetched;
+                    entry.validated = disconnects;
+                    entry.loaded = true;
+                    bytes += entry.weight(path);
+                    evict();
+                }
+            }
+            loaded = true;
+            if (stat != null) {
+                copyStat(fetched, stat);
+            }
+            return data == null ? null : data.clone();
+        } finally {
+            if (!loaded) {
+                synchronized (this) {
+                    if (entries.get(path) == entry) {
+                        entries.remove(path);
+                    }
+                }
+            }
+            entry.done.countDown();
+        }
+    }
+
+    /**
+     * 连接断开过，用exists比较mzxid，未变化时继续使用，否则删除后重新读取
+     */
+    private void validate(String path, Entry entry, long epoch) throws KeeperException, InterruptedException {
+        Stat current = zk.exists(path, false);
+        synchronized (this) {
+            validations++;
+            if (entries.get(path) != entry) {
+                return;
+            }
+            if (current != null && current.getMzxid() == entry.stat.getMzxid()) {
+                entry.validated = Math.max(entry.validated, epoch);
+            } else {
+                remove(path);
+            }
+        }
+    }
+
+    private void sync(String path) throws KeeperException, InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final int[] result = new int[1];
+        //回调和监听在同一个事件线程中按顺序执行，回调执行时之前修改的失效通知都已处理
+        zk.sync(path, new AsyncCallback.VoidCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx) {
+                result[0] = rc;
+                latch.countDown();
+            }
+        }, null);
+        latch.await();
+        if (result[0] != KeeperException.Code.OK.intValue()) {
+            throw KeeperException.create(KeeperException.Code.get(result[0]), path);
+        }
+    }
+
+    /**
+     * 从最久未访问的项开始淘汰，直到不超过上限
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            Entry entry = eldest.getValue();
+            if (!entry.loaded) {
+                continue;
+            }
+            it.remove();
+            bytes -= entry.weight(eldest.getKey());
+            evictions++;
+        }
+    }
+
+    /**
+     * 删除缓存项，在this上加锁调用
+     *
+     * @return 是否存在
+     */
+    private boolean remove(String path) {
+        Entry entry = entries.remove(path);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.loaded) {
+            bytes -= entry.weight(path);
+        }
+        return true;
+    }
+
+    private static byte[] copy(Entry entry, Stat stat) {
+        if (stat != null) {
+            copyStat(entry.stat, stat);
+        }
+        return entry.data == null ? null : entry.data.clone();
+    }
+
+    private static void copyStat(Stat from, Stat to) {
+        to.setCzxid(from.getCzxid());
+        to.setMzxid(from.getMzxid());
+        to.setPzxid(from.getPzxid());
+        to.setCtime(from.getCtime());
+        to.setMtime(from.getMtime());
+        to.setVersion(from.getVersion());
+        to.setCversion(from.getCversion());
+        to.setAversion(from.getAversion());
+        to.setEphemeralOwner(from.getEphemeralOwner());
+        to.setDataLength(from.getDataLength());
+        to.setNumChildren(from.getNumChildren());
+    }
+
+    /**
+     * 一个路径的缓存，loaded为false时表示正在读取
+     * 节点数据可以为空，不能用data是否为空判断是否已读取
+     */
+    private static class Entry {
+        final CountDownLatch done = new CountDownLatch(1);
+        boolean loaded;
+        byte[] data;
+        Stat stat;
+        /**
+         * 最近一次确认有效时的断开次数
+         */
+        long validated;
+
+        long weight(String path) {
+            return (data == null ? 0 : data.length) + path.length() + ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,602 @@
+package demo;
+
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZKUtil;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 压测工具
+ * 在/loadgen下建一棵 fanout^depth 个叶子的树，按配置的比例随机执行create/getData/setData/exists/delete/watch，
+ * 结束后输出每种操作的吞吐和p50/p99/p999延迟，可以连接现有集群，也可以启动一个内嵌的单机服务。
+ * 同步模式每个线程连续执行同步调用，并发即线程数；异步模式每个会话一个线程连续发出异步调用，并发即同时在途的请求数。
+ * create在叶子的父节点下创建新节点，delete删除之前创建的节点，没有可删除的节点时改为create；
+ * watch的延迟是exists注册监听、setData、收到通知的总时间
+ */
+public class ZKLoadGenerator {
+    private static final String ROOT = "/loadgen";
+    private static final int MAX_NODES = 1000000;
+    /**
+     * exists注册监听的回调标记
+     */
+    private static final Object WATCH_ARMED = new Object();
+
+    /**
+     * 操作类型
+     */
+    enum OpType {
+        CREATE, GET, SET, EXISTS, DELETE, WATCH
+    }
+
+    private String connect = ZookeeperDemo.ADDRESS;
+    private boolean embedded;
+    private boolean async;
+    private int sessions = 1;
+    private int concurrency = 16;
+    private int size = 128;
+    private int fanout = 10;
+    private int depth = 2;
+    private int warmup = 5;
+    private int duration = 30;
+    private int sessionTimeout = 30000;
+    private final int[] weights = new int[OpType.values().length];
+
+    private ZooKeeper[] clients;
+    private List<String> parents;
+    private List<String> leaves;
+    private byte[] payload;
+    private final ConcurrentLinkedQueue<String> created = new ConcurrentLinkedQueue<String>();
+    private final AtomicLong createSeq = new AtomicLong();
+    private final LatencyHistogram[] histograms = new LatencyHistogram[OpType.values().length];
+    private final AtomicLong[] errors = new AtomicLong[OpType.values().length];
+    private final LatencyHistogram total = new LatencyHistogram();
+    private volatile boolean running;
+    private volatile boolean recording;
+
+    private static void log(String mess) {
+        System.out.println(System.currentTimeMillis() + " " + Thread.currentThread().getName() + " " + mess);
+    }
+
+    public ZKLoadGenerator() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+            errors[i] = new AtomicLong();
+        }
+        weights[OpType.GET.ordinal()] = 60;
+        weights[OpType.SET.ordinal()] = 20;
+        weights[OpType.EXISTS.ordinal()] = 10;
+        weights[OpType.CREATE.ordinal()] = 5;
+        weights[OpType.DELETE.ordinal()] = 5;
+    }
+
+    private static void usage() {
+        System.out.println("usage: ZKLoadGenerator [options]\n"
+                + "  --connect <host:port,...>  zk 地址，默认" + ZookeeperDemo.ADDRESS + "\n"
+                + "  --embedded                 启动内嵌的单机服务，忽略--connect\n"
+                + "  --async                    异步模式，默认同步\n"
+                + "  --sessions <n>             会话数，默认1\n"
+                + "  --concurrency <n>          同步为线程数，异步为在途请求数，默认16\n"
+                + "  --mix <op:weight,...>      操作比例，op为create/get/set/exists/delete/watch，默认get:60,set:20,exists:10,create:5,delete:5\n"
+                + "  --size <bytes>             写入的数据大小，默认128\n"
+                + "  --fanout <n> --depth <n>   预建树的分支数和深度，默认10和2\n"
+                + "  --warmup <s> --duration <s> 预热和统计的秒数，默认5和30\n"
+                + "  --session-timeout <ms>     会话超时，默认30000");
+    }
+
+    /**
+     * 解析命令行参数
+     */
+    void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--embedded")) {
+                embedded = true;
+                continue;
+            }
+            if (arg.equals("--async")) {
+                async = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("missing value: " + arg);
+            }
+            String value = args[++i];
+            if (arg.equals("--connect")) {
+                connect = value;
+            } else if (arg.equals("--sessions")) {
+                sessions = Integer.parseInt(value);
+            } else if (arg.equals("--concurrency")) {
+                concurrency = Integer.parseInt(value);
+            } else if (arg.equals("--mix")) {
+                parseMix(value);
+            } else if (arg.equals("--size")) {
+                size = Integer.parseInt(value);
+            } else if (arg.equals("--fanout")) {
+                fanout = Integer.parseInt(value);
+            } else if (arg.equals("--depth")) {
+                depth = Integer.parseInt(value);
+            } else if (arg.equals("--warmup")) {
+                warmup = Integer.parseInt(value);
+            } else if (arg.equals("--duration")) {
+                duration = Integer.parseInt(value);
+            } else if (arg.equals("--session-timeout")) {
+                sessionTimeout = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+        if (sessions <= 0 || concurrency < sessions || size < 0 || fanout <= 0 || depth <= 0 || warmup < 0
+                || duration <= 0) {
+            throw new IllegalArgumentException("invalid options");
+        }
+        if (Math.pow(fanout, depth) > MAX_NODES) {
+            throw new IllegalArgumentException("tree too large: " + fanout + "^" + depth);
+        }
+    }
+
+    private void parseMix(String mix) {
+        Arrays.fill(weights, 0);
+        int total = 0;
+        for (String item : mix.split(",")) {
+            String[] pair = item.split(":");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("invalid mix: " + item);
+            }
+            int weight = Integer.parseInt(pair[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("invalid mix: " + item);
+            }
+            weights[OpType.valueOf(pair[0].trim().toUpperCase()).ordinal()] = weight;
+            total += weight;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("empty mix: " + mix);
+        }
+    }
+
+    /**
+     * 执行压测并输出结果
+     */
+    public void run() throws Exception {
+        File dataDir = null;
+        ServerCnxnFactory factory = null;
+        if (embedded) {
+            dataDir = Files.createTempDirectory("loadgen").toFile();
+            factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 0);
+            factory.startup(new ZooKeeperServer(dataDir, dataDir, 2000));
+            connect = "127.0.0.1:" + factory.getLocalPort();
+            log("embedded server: " + connect);
+        }
+        try {
+            connect();
+            setup();
+            log("mode: " + (async ? "async" : "sync") + " sessions: " + sessions + " concurrency: " + concurrency
+                    + " size: " + size + " leaves: " + leaves.size());
+            List<Thread> workers = new ArrayList<Thread>();
+            final List<Semaphore> permits = new ArrayList<Semaphore>();
+            running = true;
+            if (async) {
+                for (int i = 0; i < sessions; i++) {
+                    final ZooKeeper zk = clients[i];
+                    //在途请求平均分到各个会话
+                    final int limit = concurrency / sessions + (i < concurrency % sessions ? 1 : 0);
+                    final Semaphore semaphore = new Semaphore(limit);
+                    permits.add(semaphore);
+                    workers.add(new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            driveAsync(zk, semaphore);
+                        }
+                    }, "loadgen-async-" + i));
+                }
+            } else {
+                for (int i = 0; i < concurrency; i++) {
+                    final ZooKeeper zk = clients[i % sessions];
+                    workers.add(new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            driveSync(zk);
+                        }
+                    }, "loadgen-sync-" + i));
+                }
+            }
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+            recording = true;
+            long begin = System.nanoTime();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+            recording = false;
+            long elapsed = System.nanoTime() - begin;
+            running = false;
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            //等待异步请求全部返回
+            for (int i = 0; i < permits.size(); i++) {
+                int limit = concurrency / sessions + (i < concurrency % sessions ? 1 : 0);
+                if (!permits.get(i).tryAcquire(limit, sessionTimeout, TimeUnit.MILLISECONDS)) {
+                    log("session " + i + " has requests not returned");
+                }
+            }
+            report(elapsed);
+        } finally {
+            cleanup();
+            if (factory != null) {
+                factory.shutdown();
+                delete(dataDir);
+            }
+        }
+    }
+
+    /**
+     * 建立会话，等待全部连接成功
+     */
+    private void connect() throws IOException, InterruptedException {
+        clients = new ZooKeeper[sessions];
+        final CountDownLatch connected = new CountDownLatch(sessions);
+        for (int i = 0; i < sessions; i++) {
+            clients[i] = new ZooKeeper(connect, sessionTimeout, new Watcher() {
+                private boolean counted;
+
+                @Override
+                public void process(WatchedEvent watchedEvent) {
+                    if (watchedEvent.getState() == Event.KeeperState.SyncConnected && !counted) {
+                        counted = true;
+                        connected.countDown();
+                    }
+                }
+            });
+        }
+        if (!connected.await(sessionTimeout, TimeUnit.MILLISECONDS)) {
+            throw new IOException("connect timeout: " + connect);
+        }
+    }
+
+    /**
+     * 清理上次残留的数据后预建树
+     */
+    private void setup() throws InterruptedException, KeeperException {
+        ZooKeeper zk = clients[0];
+        if (zk.exists(ROOT, false) != null) {
+            deleteTree(zk);
+        }
+        payload = new byte[size];
+        ThreadLocalRandom.current().nextBytes(payload);
+        Map<String, byte[]> nodes = new LinkedHashMap<String, byte[]>();
+        nodes.put(ROOT, new byte[0]);
+        List<String> level = Collections.singletonList(ROOT);
+        List<String> previous = level;
+        for (int d = 0; d < depth; d++) {
+            List<String> next = new ArrayList<String>(level.size() * fanout);
+            for (String parent : level) {
+                for (int i = 0; i < fanout; i++) {
+                    String path = parent + "/n" + i;
+                    next.add(path);
+                    nodes.put(path, d == depth - 1 ? payload : new byte[0]);
+                }
+            }
+            previous = level;
+            level = next;
+        }
+        long begin = System.currentTimeMillis();
+        //同一会话中的请求按顺序执行，父节点一定先于子节点创建
+        for (ZKBulkClient.Result<String> result : new ZKBulkClient(zk).createAll(nodes, CreateMode.PERSISTENT)) {
+            if (!result.isOk()) {
+                throw KeeperException.create(result.getCode(), result.getPath());
+            }
+        }
+        parents = previous;
+        leaves = level;
+        log("setup: " + nodes.size() + " nodes cost: " + (System.currentTimeMillis() - begin) + "ms");
+    }
+
+    private void cleanup() {
+        try {
+            if (clients != null && clients[0] != null && clients[0].exists(ROOT, false) != null) {
+                deleteTree(clients[0]);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (clients != null) {
+            for (ZooKeeper client : clients) {
+                if (client != null) {
+                    try {
+                        client.close();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 子节点先于父节点批量删除
+     */
+    private static void deleteTree(ZooKeeper zk) throws InterruptedException, KeeperException {
+        List<String> paths = ZKUtil.listSubTreeBFS(zk, ROOT);
+        Collections.reverse(paths);
+        new ZKBulkClient(zk).deleteAll(paths);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * 按权重随机选择操作
+     */
+    private OpType pick(ThreadLocalRandom random) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int n = random.nextInt(total);
+        for (OpType type : OpType.values()) {
+            n -= weights[type.ordinal()];
+            if (n < 0) {
+                return type;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private String newPath(ThreadLocalRandom random) {
+        return parents.get(random.nextInt(parents.size())) + "/c" + createSeq.incrementAndGet();
+    }
+
+    private void record(OpType type, long begin, boolean ok) {
+        if (!recording) {
+            return;
+        }
+        if (ok) {
+            long micros = (System.nanoTime() - begin) / 1000;
+            histograms[type.ordinal()].record(micros);
+            total.record(micros);
+        } else {
+            errors[type.ordinal()].incrementAndGet();
+        }
+    }
+
+    /**
+     * 同步模式的工作线程
+     */
+    private void driveSync(ZooKeeper zk) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            OpType type = pick(random);
+            String path = leaves.get(random.nextInt(leaves.size()));
+            if (type == OpType.DELETE) {
+                path = created.poll();
+                if (path == null) {
+                    type = OpType.CREATE;
+                }
+            }
+            if (type == OpType.CREATE) {
+                path = newPath(random);
+            }
+            long begin = System.nanoTime();
+            boolean ok = true;
+            try {
+                switch (type) {
+                    case CREATE:
+                        zk.create(path, payload, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                        created.add(path);
+                        break;
+                    case DELETE:
+                        zk.delete(path, -1);
+                        break;
+                    case GET:
+                        zk.getData(path, false, null);
+                        break;
+                    case SET:
+                        zk.setData(path, payload, -1);
+                        break;
+                    case EXISTS:
+                        zk.exists(path, false);
+                        break;
+                    default:
+                        final CountDownLatch fired = new CountDownLatch(1);
+                        zk.exists(path, new Watcher() {
+                            @Override
+                            public void process(WatchedEvent watchedEvent) {
+                                fired.countDown();
+                            }
+                        });
+                        zk.setData(path, payload, -1);
+                        ok = fired.await(sessionTimeout, TimeUnit.MILLISECONDS);
+                        break;
+                }
+            } catch (KeeperException e) {
+                ok = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            record(type, begin, ok);
+        }
+    }
+
+    /**
+     * 异步模式的发送线程，在途请求达到上限时等待
+     */
+    private void driveAsync(ZooKeeper zk, Semaphore permits) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            OpType type = pick(random);
+            String path = leaves.get(random.nextInt(leaves.size()));
+            if (type == OpType.DELETE) {
+                path = created.poll();
+                if (path == null) {
+                    type = OpType.CREATE;
+                }
+            }
+            if (type == OpType.CREATE) {
+                path = newPath(random);
+            }
+            Completion completion = new Completion(zk, type, path, permits);
+            switch (type) {
+                case CREATE:
+                    zk.create(path, payload, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, completion, null);
+                    break;
+                case DELETE:
+                    zk.delete(path, -1, completion, null);
+                    break;
+                case GET:
+                    zk.getData(path, false, completion, null);
+                    break;
+                case SET:
+                    zk.setData(path, payload, -1, completion, null);
+                    break;
+                case EXISTS:
+                    zk.exists(path, false, completion, null);
+                    break;
+                default:
+                    zk.exists(path, completion, completion, WATCH_ARMED);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 输出统计结果
+     */
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("%-8s %10s %8s %10s %10s %10s %10s %10s", "op", "count", "errors", "ops/s",
+                "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)"));
+        long totalErrors = 0;
+        for (OpType type : OpType.values()) {
+            LatencyHistogram histogram = histograms[type.ordinal()];
+            long failed = errors[type.ordinal()].get();
+            if (histogram.count() == 0 && failed == 0) {
+                continue;
+            }
+            printRow(type.name().toLowerCase(), histogram, failed, seconds);
+            totalErrors += failed;
+        }
+        printRow("total", total, totalErrors, seconds);
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram, long failed, double seconds) {
+        System.out.println(String.format("%-8s %10d %8d %10.0f %10.3f %10.3f %10.3f %10.3f", name, histogram.count(),
+                failed, histogram.count() / seconds, histogram.percentile(0.5) / 1000.0,
+                histogram.percentile(0.99) / 1000.0, histogram.percentile(0.999) / 1000.0, histogram.max() / 1000.0));
+    }
+
+    /**
+     * 一个异步请求，完成时记录延迟并归还在途名额
+     */
+    private class Completion implements AsyncCallback.StringCallback, AsyncCallback.VoidCallback,
+            AsyncCallback.DataCallback, AsyncCallback.StatCallback, Watcher {
+        final ZooKeeper zk;
+        final OpType type;
+        final String path;
+        final Semaphore permits;
+        final long begin = System.nanoTime();
+        final AtomicBoolean done = new AtomicBoolean();
+
+        Completion(ZooKeeper zk, OpType type, String path, Semaphore permits) {
+            this.zk = zk;
+            this.type = type;
+            this.path = path;
+            this.permits = permits;
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name) {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                created.add(path);
+            }
+            finish(rc == KeeperException.Code.OK.intValue());
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx) {
+            finish(rc == KeeperException.Code.OK.intValue());
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            finish(rc == KeeperException.Code.OK.intValue());
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            if (type != OpType.WATCH || rc != KeeperException.Code.OK.intValue()) {
+                finish(rc == KeeperException.Code.OK.intValue());
+            } else if (ctx == WATCH_ARMED) {
+                //监听已注册，修改数据触发它，setData成功后等待通知
+                zk.setData(path, payload, -1, this, null);
+            }
+        }
+
+        @Override
+        public void process(WatchedEvent watchedEvent) {
+            if (watchedEvent.getType() != Event.EventType.None) {
+                finish(true);
+            }
+        }
+
+        private void finish(boolean ok) {
+            if (done.compareAndSet(false, true)) {
+                record(type, begin, ok);
+                permits.release();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ZKLoadGenerator generator = new ZKLoadGenerator();
+        try {
+            generator.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            usage();
+            return;
+        }
+        generator.run();
+    }
+}
@@ -4,12 +4,22 @@ package demo;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 基于Zookeeper的分布式锁实现
@@ -24,29 +34,91 @@ public class ZKLock {
      */
     private static final String NODENAME_BEGIN = "lock_";
     /**
-     * 存储于threadlock中的参数 当前序列
+     * 临时有序节点的序号长度
      */
-    private static final String PARAM_CURRSEQ = "currSeq";
+    private static final int SEQUENCE_LENGTH = 10;
     /**
-     * 存储于threadlock中的参数 前序序列
+     * 临时有序节点按序号排序
      */
-    private static final String PARAM_PRESEQ = "preSeq";
+    static final Comparator<String> SEQUENCE_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            return Long.compare(sequenceOf(o1), sequenceOf(o2));
+        }
+    };
+    /**
+     * 本地队列模式下，zk锁在进程内连续转交的最大次数，超过后必须释放zk锁，避免其他进程饿死
+     */
+    private static final int MAX_COHORT_PASSES = 64;
+    /**
+     * 是否输出加锁过程的日志，由系统参数zklock.log开启
+     */
+    private static final boolean LOG_ENABLED = Boolean.getBoolean("zklock.log");
+    /**
+     * 单独统计性能指标的资源数上限，由系统参数zklock.metrics.max指定，默认1024；超出后的资源合并到一份指标中
+     */
+    private static final int MAX_METRICS = Integer.getInteger("zklock.metrics.max", 1024);
     /**
      * zk锁
      */
     private static ZKLock lock;
     /**
-     * zk 连接
+     * zk锁（本地队列模式）
+     */
+    private static ZKLock cohortLock;
+    /**
+     * zk 连接池 集群 -> 该集群的会话，资源按名称的哈希值固定映射到其中一个集群的一个会话
+     */
+    private ZooKeeper[][] sessions;
+    /**
+     * 线程级缓存 资源名称 -> 当前线程对该资源的加锁状态
+     */
+    private ThreadLocal<Map<String, LockData>> threadlocal = new ThreadLocal<Map<String, LockData>>() {
+        @Override
+        protected Map<String, LockData> initialValue() {
+            return new HashMap<String, LockData>();
+        }
+    };
+    /**
+     * 是否开启本地队列模式
+     */
+    private final boolean cohortMode;
+    /**
+     * 本地队列 资源名称 -> 进程内的锁队列
+     */
+    private final ConcurrentMap<String, Cohort> cohorts = new ConcurrentHashMap<String, Cohort>();
+    /**
+     * 子节点索引 资源名称 -> 锁资源的子节点索引，只保留有线程正在加锁的资源
      */
-    private ZooKeeper zk;
+    private final ConcurrentMap<String, ChildIndex> indexes = new ConcurrentHashMap<String, ChildIndex>();
     /**
-     * 线程级缓存
+     * 已确认存在的锁资源节点
      */
-    private ThreadLocal<Map<String, String>> threadlocal = new ThreadLocal<Map<String, String>>();
+    private final Set<String> knownParents = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /**
+     * 性能指标 资源名称 -> 锁资源的性能指标，最多{@link #MAX_METRICS}个
+     */
+    private final ConcurrentMap<String, LockMetrics> metrics = new ConcurrentHashMap<String, LockMetrics>();
+    /**
+     * 超出上限的资源合并统计的性能指标，第一次使用时创建
+     */
+    private volatile LockMetrics overflowMetrics;
 
 
-    private ZKLock() {
-        zk = ZKHelper.getConn();
+    private ZKLock(boolean cohortMode) {
+        this.cohortMode = cohortMode;
+        sessions = ZKHelper.getConns();
+    }
+
+    /**
+     * 获取资源对应的zk会话
+     * 先按哈希值选集群，再在集群内选会话，集群只由资源名称和集群数决定，各进程的会话数不同时同一资源也在同一集群上加锁；
+     * 同一资源始终使用同一个会话，保证该资源的请求和监听在同一会话中有序；不同资源分散到多个会话的事件线程上
+     */
+    private ZooKeeper zk(String resName) {
+        int hash = resName.hashCode() & Integer.MAX_VALUE;
+        ZooKeeper[] ensemble = sessions[hash % sessions.length];
+        return ensemble[(hash / sessions.length) % ensemble.length];
     }
 
     /**
@@ -55,14 +127,28 @@ public class ZKLock {
     public static synchronized ZKLock getInstance() {
         if (lock == null) {
             synchronized (ZKLock.class) {
-                lock = new ZKLock();
+                lock = new ZKLock(false);
             }
         }
         return lock;
     }
 
     /**
-     * 输出日志
+     * 单例（本地队列模式）
+     * 同一进程内的线程先在本地按资源排队，只有队首线程在zk中持有临时有序节点，
+     * 释放时如果本地还有等待线程，则直接把zk锁转交给本地的下一个线程，不再删除节点
+     */
+    public static synchronized ZKLock getCohortInstance() {
+        if (cohortLock == null) {
+            synchronized (ZKLock.class) {
+                cohortLock = new ZKLock(true);
+            }
+        }
+        return cohortLock;
+    }
+
+    /**
+     * 输出日志，调用处需先判断{@link #LOG_ENABLED}，避免在加锁路径上拼接字符串
      */
     private static void log(String mess) {
         System.out.println(System.currentTimeMillis() + " " + Thread.currentThread().getId() + " " + mess);
@@ -70,91 +156,295 @@ public class ZKLock {
 
     /**
      * 尝试加锁
+     * 只尝试一次，未获取到锁时删除本次创建的临时节点
      *
      * @param resName 资源名称
      * @return 加锁结果
      */
     public boolean tryLock(String resName) {
+        try {
+            return tryLock(resName, 0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 限时加锁
+     * 超时或被中断时删除本次创建的临时节点，不影响后续的等待者
+     *
+     * @param resName 资源名称
+     * @param timeout 最长等待时间
+     * @param unit    时间单位
+     * @return 加锁结果
+     */
+    public boolean tryLock(String resName, long timeout, TimeUnit unit) throws InterruptedException {
+        return acquireMetered(resName, Math.max(0, unit.toNanos(timeout)), true);
+    }
+
+    /**
+     * 加锁，等待过程中响应中断
+     * 被中断时删除本次创建的临时节点
+     *
+     * @param resName 资源名称
+     */
+    public void lockInterruptibly(String resName) throws InterruptedException {
+        acquireMetered(resName, -1, true);
+    }
+
+    /**
+     * 加锁
+     */
+    public void lock(String resName) {
+        try {
+            acquireMetered(resName, -1, false);
+        } catch (InterruptedException e) {
+            //不响应中断的加锁不会抛出中断异常
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 加锁并记录加锁耗时和等待线程数
+     */
+    private boolean acquireMetered(String resName, long nanosTimeout, boolean interruptible) throws
+            InterruptedException {
+        LockMetrics lockMetrics = getMetrics(resName);
+        long begin = lockMetrics.beginAcquire();
+        boolean acquired = false;
+        try {
+            acquired = cohortMode ? acquireCohort(resName, nanosTimeout, interruptible)
+                    : acquire(resName, nanosTimeout, interruptible);
+        } finally {
+            lockMetrics.endAcquire(begin, acquired);
+        }
+        return acquired;
+    }
+
+    /**
+     * 尝试加锁一次
+     * 第一次尝试时创建临时有序节点，之后只在本地的子节点索引中判断当前序列是否最小，不再访问zk。
+     * 未获取到锁时保留已创建的临时节点，并记录前序序列，用于等待后再次尝试
+     *
+     * @param resName 资源名称
+     * @param data    当前线程对该资源的加锁状态
+     * @param index   锁资源的子节点索引
+     * @return 加锁结果
+     */
+    private boolean tryAcquire(String resName, LockData data, ChildIndex index) throws KeeperException,
+            InterruptedException {
+        //如果当前序列为空，则表明当前线程是第一次尝试加锁。在锁资源节点下创建临时节点。
+        //如果当前序列已有，则表明当前线程已经尝试过加锁，但是没能获取到锁，所以再次尝试加锁时不再创建新的临时节点，还是采用上一次已创建好的临时节点来竞争锁
+        if (data.currSeq == null) {
+            return createAndCheck(resName, data, index);
+        }
+        //被唤醒时索引已随前序节点的删除刷新过，所有子节点中序号最小的则是最先请求锁的
+        return checkIndex(data, index);
+    }
+
+    /**
+     * 创建临时有序节点并判断是否获取到锁，无竞争时只需一次往返
+     * 异步创建临时节点后紧接着获取子节点，同一会话的请求按顺序处理，获取到的子节点中一定包含刚创建的节点；
+     * 锁资源节点未知是否存在时，在这之前再异步创建锁资源节点，三个请求一起发出。
+     * 请求发出后一定等到创建结果并记录节点，中断也不放弃等待，避免节点已创建但没有记录，成为无主节点
+     */
+    private boolean createAndCheck(String resName, LockData data, ChildIndex index) throws KeeperException,
+            InterruptedException {
+        ZooKeeper zk = zk(resName);
         //根据资源名称获取锁的路径
         String lockPath = getLockPath(resName);
+        String childLockPath = lockPath + "/" + resName;
+        LockMetrics lockMetrics = getMetrics(resName);
+        if (!knownParents.contains(lockPath)) {
+            lockMetrics.zkOps(1);
+            zk.create(lockPath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT,
+                    new AsyncCallback.StringCallback() {
+                        @Override
+                        public void processResult(int rc, String path, Object ctx, String name) {
+                            //创建成功或已存在都说明锁资源节点存在，其他错误时创建临时节点也会失败，由创建结果处理
+                            if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                                knownParents.add(path);
+                            }
+                        }
+                    }, null);
+        }
+        final CompletableFuture<String> created = new CompletableFuture<String>();
+        lockMetrics.zkOps(1);
+        zk.create(childLockPath, resName.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL,
+                new AsyncCallback.StringCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx, String name) {
+                        if (rc == KeeperException.Code.OK.intValue()) {
+                            created.complete(name);
+                        } else {
+                            created.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+                        }
+                    }
+                }, null);
         try {
-            //判断锁资源对应的节点是否存在
-            Stat stat = zk.exists(lockPath, null);
-            //节点不存在，则创建永久节点，当前线程成功获取资源锁
-            if (stat == null) {
-                //创建锁资源节点时，其数据是boolean值，表示当前锁资源是否有线程占有，这个资源锁目前只能被使用一次。
-                zk.create(lockPath, String.valueOf(Boolean.TRUE).getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-                log("get resLock!");
-                return true;
-            }
-
-            //如果当前序列为空，则表明当前线程是第一次尝试加锁。在锁资源节点下创建临时节点。
-            //如果当前序列已有，则表明当前线程已经尝试过加锁，但是没能获取到锁，所以再次尝试加锁时不再创建新的临时节点，还是采用上一次已创建好的临时节点来竞争锁
-            String currSeq = threadlocal.get().get(PARAM_CURRSEQ);
-            if (currSeq == null) {
-                String childLockPath = lockPath + "/" + resName;
-                currSeq = zk.create(childLockPath, resName.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
-                currSeq = currSeq.substring(currSeq.lastIndexOf("/") + 1);
-                //将当前序列加入线程缓存中，用于阻塞后唤起再次尝试加锁
-                threadlocal.get().put(PARAM_CURRSEQ, currSeq);
-            }
-            //获取锁资源节点下的所有节点，由于所资源下都是创建的有序临时节点，故锁资源下的子节点都是按照事件发生的顺序创建的。
-            //所有子节点的顺序最小的则是最先请求锁的
-            List<String> children = zk.getChildren(lockPath, null);
-            log("children: " + children + " currSeq: " + currSeq);
-            //排序
-            Collections.sort(children);
-            //当前序列与最小的子节点进行比对，如果一致，则表明当前线程是最早请求锁的，成功获取锁
-            if (currSeq.equals(children.get(0))) {
-                log("get currLock: " + currSeq + " !");
-                return true;
-            }
-
-            //如果当前序列不是最小的，则获取当前序列前一位的序列，即比当前线程早请求的序列
-            //如果前序序列不存在，则表明当前线程是第一次尝试加锁，从子节点列表中通过二分查找获取前序序列
-            //如果前序序列已存在，则表明当前线程是阻塞唤醒后再次尝试加锁，故判断前序序列是否还存在，如果不存在则重新获取前序序列
-            String preSeq = threadlocal.get().get(PARAM_PRESEQ);
-            Stat preSeqStat = null;
-            if (preSeq != null) {
-                preSeqStat = zk.exists(lockPath + '/' + preSeq, false);
-            }
-            if (preSeqStat == null) {
-                preSeq = children.get(Collections.binarySearch(children, currSeq) - 1);
-                threadlocal.get().put(PARAM_PRESEQ, preSeq);
+            index.refresh();
+        } finally {
+            //无论获取子节点是否成功，都要拿到创建结果，避免遗留无主节点
+            data.currSeq = awaitCreated(created);
+        }
+        if (!checkIndex(data, index) && data.preSeq == ChildIndex.UNKNOWN) {
+            //快照中没有刚创建的节点，说明快照不是最新的，同步刷新后再判断
+            index.refresh();
+            if (!checkIndex(data, index) && data.preSeq == ChildIndex.UNKNOWN) {
+                throw KeeperException.create(KeeperException.Code.NONODE, lockPath + "/" + data.currSeq);
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (KeeperException e) {
-            e.printStackTrace();
         }
+        return data.preSeq == ChildIndex.NONE;
+    }
+
+    /**
+     * 获取异步创建的结果
+     * 等待期间被中断时继续等待，拿到结果后再恢复中断状态；锁资源节点被删除时清除缓存，下次按锁资源节点不存在处理
+     */
+    private String awaitCreated(CompletableFuture<String> created) throws KeeperException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return nodeName(created.get());
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            KeeperException cause = (KeeperException) e.getCause();
+            if (cause.code() == KeeperException.Code.NONODE) {
+                knownParents.remove(cause.getPath().substring(0, cause.getPath().lastIndexOf("/")));
+            }
+            throw cause;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 在子节点索引中判断当前序列是否最小
+     */
+    private boolean checkIndex(LockData data, ChildIndex index) {
+        long preSeq = index.predecessor(sequenceOf(data.currSeq));
+        data.preSeq = preSeq;
+        if (preSeq == ChildIndex.NONE) {
+            if (LOG_ENABLED) {
+                log("get currLock: " + data.currSeq + " !");
+            }
+            return true;
+        }
+        //记录比当前线程早请求的前序序列；索引中还没有当前序列时为UNKNOWN
         return false;
     }
 
     /**
      * 释放锁
+     * 重入加锁时只减少持有次数，最外层释放时才删除zk节点
      */
     public void unLock(String resName) {
-        //获取锁资源路径
-        String lockPath = getLockPath(resName);
+        if (cohortMode) {
+            unLockCohort(resName);
+            return;
+        }
+        LockData data = threadlocal.get().get(resName);
+        if (data == null || data.holdCount == 0) {
+            throw new IllegalMonitorStateException("not owner of lock: " + resName);
+        }
+        if (--data.holdCount > 0) {
+            return;
+        }
+        threadlocal.get().remove(resName);
+        getMetrics(resName).recordHold(data.acquiredAt);
+        release(resName, data.currSeq);
+    }
+
+    /**
+     * 释放锁（本地队列模式）
+     * 本地还有等待线程且转交次数未超限时，保留zk节点直接转交，否则释放zk锁；
+     * 转交后等待线程可能已超时或被中断放弃，解锁后再检查一次，没有等待线程时释放zk锁
+     */
+    private void unLockCohort(String resName) {
+        Cohort cohort = cohorts.get(resName);
+        if (cohort == null || !cohort.local.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("not owner of lock: " + resName);
+        }
+        //重入的内层释放，只释放本地锁
+        if (cohort.local.getHoldCount() > 1) {
+            cohort.local.unlock();
+            return;
+        }
+        getMetrics(resName).recordHold(cohort.acquiredAt);
+        boolean passed = false;
         try {
-            //获取资源锁的值，判断当前线程拥有的是资源锁还是临时锁
-            String resLockValue = new String(zk.getData(lockPath, null, null));
-            //如果当前线程拥有的是资源锁，则释放资源锁
-            if (Boolean.parseBoolean(resLockValue)) {
-                Stat stat = zk.exists(lockPath, null);
-                zk.setData(lockPath, String.valueOf(Boolean.FALSE).getBytes(), stat.getVersion());
-                log("release resLock...");
-            }
-            //如果当前线程拥有的是临时锁，则删除临时节点，释放临时锁
-            else {
-                String currSeq = threadlocal.get().get(PARAM_CURRSEQ);
-                String childLockPath = lockPath + "/" + currSeq;
-                Stat stat = zk.exists(childLockPath, null);
-                zk.delete(childLockPath, stat.getVersion());
+            if (cohort.local.hasQueuedThreads() && cohort.passes < MAX_COHORT_PASSES) {
+                cohort.passes++;
+                passed = true;
+                if (LOG_ENABLED) {
+                    log("pass cohortLock: " + cohort.seq + "...");
+                }
+            } else {
+                releaseCohort(resName, cohort);
+            }
+        } finally {
+            cohort.local.unlock();
+        }
+        if (passed) {
+            releaseIfIdle(resName, cohort);
+        }
+    }
+
+    /**
+     * 本地锁空闲且没有等待线程时，释放转交给本进程的zk锁
+     * 转交时统计到的等待线程可能随后超时或被中断放弃，zk锁会留在本进程却没有持有者。
+     * 转交方解锁后、放弃的线程离开等待队列后都检查一次，后检查的一方一定能看到对方的结果；
+     * 本地锁被其他线程持有时，由它释放时处理
+     */
+    private void releaseIfIdle(String resName, Cohort cohort) {
+        if (cohort.local.hasQueuedThreads() || !cohort.local.tryLock()) {
+            return;
+        }
+        try {
+            if (cohort.held && !cohort.local.hasQueuedThreads()) {
+                releaseCohort(resName, cohort);
+            }
+        } finally {
+            cohort.local.unlock();
+        }
+    }
+
+    /**
+     * 释放本进程持有的zk锁，持有本地锁时调用
+     */
+    private void releaseCohort(String resName, Cohort cohort) {
+        release(resName, cohort.seq);
+        cohort.held = false;
+        cohort.seq = null;
+        cohort.passes = 0;
+    }
+
+    /**
+     * 释放zk锁，删除持有的临时节点
+     *
+     * @param resName 资源名称
+     * @param currSeq 当前持有的临时节点
+     */
+    private void release(String resName, String currSeq) {
+        String childLockPath = getLockPath(resName) + "/" + currSeq;
+        getMetrics(resName).zkOps(1);
+        try {
+            zk(resName).delete(childLockPath, -1);
+            if (LOG_ENABLED) {
                 log("release currLock:" + currSeq + "...");
             }
-            threadlocal.get().put(PARAM_PRESEQ, null);
-            threadlocal.get().put(PARAM_CURRSEQ, null);
+        } catch (KeeperException.NoNodeException e) {
+            //会话过期，节点已被删除
+            if (LOG_ENABLED) {
+                log("lost currLock:" + currSeq + "...");
+            }
         } catch (KeeperException e) {
             e.printStackTrace();
         } catch (InterruptedException e) {
@@ -163,101 +453,573 @@ public class ZKLock {
     }
 
     /**
-     * 等待锁
-     */
-    /**
+     * 加锁
+     * 当前线程已持有该资源的锁时只增加持有次数，不访问zk；
+     * 否则循环尝试加锁，未获取到则等待前序节点的释放；超时、中断或异常放弃时，删除当前线程的临时节点
      *
-     * @param resName
+     * @param resName       资源名称
+     * @param nanosTimeout  最长等待时间（纳秒），小于0表示一直等待
+     * @param interruptible 是否响应中断
+     * @return 加锁结果
      */
-    private void wait4Lock(String resName) {
-        //获取锁资源路径
-        String lockPath = getLockPath(resName);
+    private boolean acquire(String resName, long nanosTimeout, boolean interruptible) throws InterruptedException {
+        LockData data = threadlocal.get().get(resName);
+        //重入
+        if (data != null) {
+            data.holdCount++;
+            return true;
+        }
+        data = new LockData(resName);
+        threadlocal.get().put(resName, data);
+        ChildIndex index = retainIndex(resName);
+        long deadline = System.nanoTime() + nanosTimeout;
+        boolean acquired = false;
+        boolean interrupted = false;
         try {
-            //获取资源锁节点的值
-            final String resLock = new String(zk.getData(lockPath, null, null));
-            final CountDownLatch latch = new CountDownLatch(1);
-            //如果当前线程是在等待资源锁的释放，则对资源锁的值变化做监听
-            if (String.valueOf(Boolean.TRUE).equals(resLock)) {
-                zk.getData(lockPath, new Watcher() {
-                    @Override
-                    public void process(WatchedEvent watchedEvent) {
-                        if (resLock.equals(watchedEvent.getPath())) {
-                            //监听触发后唤醒
-                            latch.countDown();
-                        }
+            while (true) {
+                try {
+                    //尝试加锁，成功则加锁成，否则阻塞等待
+                    if (tryAcquire(resName, data, index)) {
+                        data.holdCount = 1;
+                        data.acquiredAt = System.nanoTime();
+                        acquired = true;
+                        return true;
                     }
-                }, null);
-                log("wait resLock...");
-                //阻塞
-                latch.await();
-            }
-            //如果当前线程是阻塞在临时锁，则对前序节点删除事件加监听
-            else {
-                String preSeq = threadlocal.get().get(PARAM_PRESEQ);
-                final String preNodePath = lockPath + "/" + preSeq;
-                zk.exists(preNodePath, new Watcher() {
-                    @Override
-                    public void process(WatchedEvent watchedEvent) {
-                        if (preNodePath.equals(watchedEvent.getPath())) {
-                            //唤醒
-                            latch.countDown();
+                    long remaining = -1;
+                    if (nanosTimeout >= 0) {
+                        remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return false;
                         }
-
                     }
-                });
-                log("wait preSeq" + preSeq + "...");
-                //阻塞
-                latch.await();
+                    wait4Lock(data, index, remaining);
+                } catch (InterruptedException e) {
+                    if (interruptible) {
+                        throw e;
+                    }
+                    interrupted = true;
+                }
+            }
+        } catch (KeeperException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            releaseIndex(resName, index);
+            if (!acquired) {
+                abandon(resName, data);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 放弃加锁，删除当前线程已创建的临时节点，避免无主节点一直留到会话结束
+     */
+    private void abandon(String resName, LockData data) {
+        threadlocal.get().remove(resName);
+        String currSeq = data.currSeq;
+        if (currSeq == null) {
+            return;
+        }
+        ZooKeeper zk = zk(resName);
+        getMetrics(resName).zkOps(1);
+        try {
+            zk.delete(getLockPath(resName) + "/" + currSeq, -1);
+            if (LOG_ENABLED) {
+                log("abandon currLock: " + currSeq + "...");
             }
-            //再次尝试加锁
-            lock(resName, false);
+        } catch (KeeperException.NoNodeException ignored) {
         } catch (KeeperException e) {
             e.printStackTrace();
         } catch (InterruptedException e) {
+            //保证节点被删除，再恢复中断状态
+            try {
+                zk.delete(getLockPath(resName) + "/" + currSeq, -1);
+            } catch (Exception ignored) {
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 加锁（本地队列模式）
+     * 先获取本地锁，如果本进程已经持有zk锁（由上一个本地持有者转交），则直接获得锁；否则由当前线程去zk中竞争
+     */
+    private boolean acquireCohort(String resName, long nanosTimeout, boolean interruptible) throws InterruptedException {
+        Cohort cohort = getCohort(resName);
+        long deadline = System.nanoTime() + nanosTimeout;
+        boolean locked = false;
+        try {
+            if (nanosTimeout >= 0) {
+                locked = cohort.local.tryLock(nanosTimeout, TimeUnit.NANOSECONDS);
+            } else if (interruptible) {
+                cohort.local.lockInterruptibly();
+                locked = true;
+            } else {
+                cohort.local.lock();
+                locked = true;
+            }
+        } finally {
+            if (!locked) {
+                //放弃等待前，上一个持有者可能已按本线程在等待把zk锁留给了本地
+                releaseIfIdle(resName, cohort);
+            }
+        }
+        if (!locked) {
+            return false;
+        }
+        //重入
+        if (cohort.local.getHoldCount() > 1) {
+            return true;
+        }
+        //zk锁已由本地上一个持有者转交
+        if (cohort.held) {
+            cohort.acquiredAt = System.nanoTime();
+            return true;
+        }
+        boolean acquired = false;
+        try {
+            long remaining = nanosTimeout < 0 ? -1 : Math.max(0, deadline - System.nanoTime());
+            acquired = acquire(resName, remaining, interruptible);
+        } finally {
+            if (!acquired) {
+                cohort.local.unlock();
+            }
+        }
+        if (acquired) {
+            cohort.held = true;
+            //zk锁归本进程所有，由本地队列负责转交和释放
+            cohort.seq = threadlocal.get().remove(resName).currSeq;
+            cohort.passes = 0;
+            cohort.acquiredAt = System.nanoTime();
+        }
+        return acquired;
+    }
+
+    /**
+     * 等待锁
+     * 等待者登记在索引中，由索引对本进程最早的等待者的前序节点注册一个exists监听，
+     * 释放锁只通知排在其后的一个进程，并只唤醒登记在被删除节点上的线程。等待通过LockSupport挂起，不会递归也不占用监视器
+     *
+     * @param data         当前线程对该资源的加锁状态
+     * @param index        锁资源的子节点索引
+     * @param nanosTimeout 最长等待时间（纳秒），小于0表示一直等待
+     */
+    private void wait4Lock(LockData data, ChildIndex index, long nanosTimeout) throws
+            InterruptedException {
+        if (LOG_ENABLED) {
+            log("wait preSeq" + data.preSeq + "...");
+        }
+        boolean woken = index.awaitDeleted(data.preSeq, nanosTimeout);
+        if (woken) {
+            getMetrics(data.resName).wakeup();
+        }
+    }
+
+    /**
+     * 获取锁资源的性能指标
+     * 第一次获取时创建，并注册到JMX：demo:type=ZKLock,mode=default|cohort,name="资源名称"；
+     * 资源数已达上限时返回合并统计的指标{@link #getOverflowMetrics()}，资源名称很多时指标和MBean不会无限增长
+     *
+     * @param resName 资源名称
+     */
+    public LockMetrics getMetrics(String resName) {
+        LockMetrics lockMetrics = metrics.get(resName);
+        if (lockMetrics == null) {
+            if (metrics.size() >= MAX_METRICS) {
+                return getOverflowMetrics();
+            }
+            LockMetrics created = new LockMetrics();
+            lockMetrics = metrics.putIfAbsent(resName, created);
+            if (lockMetrics == null) {
+                lockMetrics = created;
+                registerMBean(ObjectName.quote(resName), created);
+            }
+        }
+        return lockMetrics;
+    }
+
+    /**
+     * 获取超出上限的资源合并统计的性能指标
+     * 第一次获取时创建，并注册到JMX：demo:type=ZKLock,mode=default|cohort,name=overflow（不带引号，不会与资源名称冲突）
+     */
+    public LockMetrics getOverflowMetrics() {
+        LockMetrics lockMetrics = overflowMetrics;
+        if (lockMetrics == null) {
+            synchronized (this) {
+                lockMetrics = overflowMetrics;
+                if (lockMetrics == null) {
+                    lockMetrics = new LockMetrics();
+                    registerMBean("overflow", lockMetrics);
+                    overflowMetrics = lockMetrics;
+                }
+            }
+        }
+        return lockMetrics;
+    }
+
+    /**
+     * 获取所有单独统计的锁资源的性能指标，返回只读视图，不复制
+     */
+    public Map<String, LockMetrics> getAllMetrics() {
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    private void registerMBean(String name, LockMetrics lockMetrics) {
+        try {
+            ObjectName objectName = new ObjectName("demo:type=ZKLock,mode=" + (cohortMode ? "cohort" : "default")
+                    + ",name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(lockMetrics, objectName);
+        } catch (JMException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * 加锁
+     * 获取锁资源的子节点索引并登记使用，加锁结束后调用{@link #releaseIndex}
+     * 取到刚作废的索引时，将其移出缓存后重新获取
      */
-    public void lock(String resName) {
-        lock(resName, true);
+    private ChildIndex retainIndex(String resName) {
+        while (true) {
+            ChildIndex index = indexes.get(resName);
+            if (index == null) {
+                ChildIndex created = new ChildIndex(zk(resName), getLockPath(resName), getMetrics(resName));
+                index = indexes.putIfAbsent(resName, created);
+                if (index == null) {
+                    index = created;
+                }
+            }
+            if (index.retain()) {
+                return index;
+            }
+            indexes.remove(resName, index);
+        }
     }
 
     /**
-     * 加锁
+     * 注销索引的使用，没有线程在加锁该资源时移出缓存
      */
-    private void lock(String resName, boolean init) {
-        if (init) {
-            Map<String, String> map = new HashMap<String, String>();
-            threadlocal.set(map);
+    private void releaseIndex(String resName, ChildIndex index) {
+        if (index.release()) {
+            indexes.remove(resName, index);
         }
-        //尝试加锁，成功则加锁成，否则阻塞等待
-        if (tryLock(resName)) {
-        } else {
-            wait4Lock(resName);
+    }
+
+    private Cohort getCohort(String resName) {
+        Cohort cohort = cohorts.get(resName);
+        if (cohort == null) {
+            Cohort created = new Cohort();
+            cohort = cohorts.putIfAbsent(resName, created);
+            if (cohort == null) {
+                cohort = created;
+            }
         }
+        return cohort;
     }
 
-    private static String getLockPath(String resName) {
+    /**
+     * 异步加锁
+     * 基于zk的异步create/getChildren/exists回调完成排队，等待期间不占用任何线程。
+     * 返回的future在获取到锁后以当前持有的临时节点名称完成，释放时需调用{@link #unLock(String, String)}。
+     * 回调在zk的事件线程上执行，后续的处理逻辑应使用future的*Async方法切换到业务线程池
+     *
+     * @param resName 资源名称
+     * @return 持有的临时节点名称
+     */
+    public CompletableFuture<String> lockAsync(String resName) {
+        AsyncAcquire acquire = new AsyncAcquire(resName);
+        acquire.create();
+        return acquire.future;
+    }
+
+    /**
+     * 释放异步获取的锁
+     *
+     * @param resName 资源名称
+     * @param currSeq {@link #lockAsync(String)}返回的临时节点名称
+     */
+    public void unLock(String resName, String currSeq) {
+        release(resName, currSeq);
+    }
+
+    /**
+     * 获取临时有序节点的序号
+     */
+    static long sequenceOf(String node) {
+        return Long.parseLong(node.substring(node.length() - SEQUENCE_LENGTH));
+    }
+
+    /**
+     * 从节点路径中获取节点名称
+     */
+    private static String nodeName(String path) {
+        return path.substring(path.lastIndexOf("/") + 1);
+    }
+
+    static String getLockPath(String resName) {
         return NODEPATH_ROOTLOCK + '/' + NODENAME_BEGIN + resName;
     }
 
-    private static class ZKHelper {
+    /**
+     * 一次异步加锁过程
+     * 创建临时有序节点 -> 获取子节点判断是否最小 -> 监听前序节点删除 -> 再次判断，所有步骤都在zk回调中推进
+     */
+    private class AsyncAcquire implements AsyncCallback.StringCallback, AsyncCallback.ChildrenCallback,
+            AsyncCallback.StatCallback, Watcher {
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        final ZooKeeper zk;
+        final LockMetrics metrics;
+        final String resName;
+        final String lockPath;
+        /**
+         * 当前序列
+         */
+        volatile String currSeq;
+        /**
+         * 前序序列
+         */
+        volatile String preSeq;
+
+        AsyncAcquire(String resName) {
+            this.zk = zk(resName);
+            this.metrics = getMetrics(resName);
+            this.resName = resName;
+            this.lockPath = getLockPath(resName);
+        }
+
+        /**
+         * 在锁资源节点下创建临时有序节点
+         */
+        void create() {
+            metrics.zkOps(1);
+            zk.create(lockPath + "/" + resName, resName.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL, this, null);
+        }
+
+        /**
+         * 获取子节点，判断当前序列是否最小
+         */
+        void check() {
+            metrics.zkOps(1);
+            zk.getChildren(lockPath, false, this, null);
+        }
+
+        /**
+         * create回调
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, String name) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            //锁资源节点还不存在，先创建锁资源节点再重新创建临时节点
+            if (code == KeeperException.Code.NONODE && path.startsWith(lockPath + "/")) {
+                zk.create(lockPath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT, this, null);
+                return;
+            }
+            //锁资源节点创建完成（或已被其他客户端创建），重新创建临时节点
+            if (path.equals(lockPath)) {
+                if (code == KeeperException.Code.OK || code == KeeperException.Code.NODEEXISTS) {
+                    create();
+                } else {
+                    fail(code, path);
+                }
+                return;
+            }
+            if (code != KeeperException.Code.OK) {
+                fail(code, path);
+                return;
+            }
+            currSeq = name.substring(name.lastIndexOf("/") + 1);
+            check();
+        }
+
+        /**
+         * getChildren回调
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code != KeeperException.Code.OK) {
+                fail(code, path);
+                return;
+            }
+            Collections.sort(children, SEQUENCE_ORDER);
+            int index = Collections.binarySearch(children, currSeq, SEQUENCE_ORDER);
+            //当前序列已不存在（会话过期等）
+            if (index < 0) {
+                fail(KeeperException.Code.NONODE, lockPath + "/" + currSeq);
+                return;
+            }
+            if (index == 0) {
+                if (LOG_ENABLED) {
+                    log("get currLock: " + currSeq + " !");
+                }
+                if (!future.complete(currSeq)) {
+                    //调用方已取消，释放锁
+                    release(resName, currSeq);
+                }
+                return;
+            }
+            //监听前序节点的删除
+            preSeq = children.get(index - 1);
+            metrics.zkOps(1);
+            zk.exists(lockPath + "/" + preSeq, this, this, null);
+        }
+
+        /**
+         * exists回调
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, Stat stat) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            //前序节点在注册监听前已被删除，再次判断
+            if (code == KeeperException.Code.NONODE) {
+                check();
+            } else if (code != KeeperException.Code.OK) {
+                fail(code, path);
+            } else {
+                if (LOG_ENABLED) {
+                    log("wait preSeq" + preSeq + "...");
+                }
+            }
+        }
+
+        /**
+         * 前序节点的监听
+         */
+        @Override
+        public void process(WatchedEvent watchedEvent) {
+            if (watchedEvent.getType() == Event.EventType.NodeDeleted) {
+                check();
+            }
+        }
+
+        /**
+         * 加锁失败，删除已创建的临时节点
+         */
+        void fail(KeeperException.Code code, String path) {
+            if (currSeq != null) {
+                zk.delete(lockPath + "/" + currSeq, -1, new AsyncCallback.VoidCallback() {
+                    @Override
+                    public void processResult(int rc, String path, Object ctx) {
+                    }
+                }, null);
+            }
+            future.completeExceptionally(KeeperException.create(code, path));
+        }
+    }
+
+    /**
+     * 线程对某个资源的加锁状态
+     */
+    private static class LockData {
+        /**
+         * 资源名称
+         */
+        final String resName;
+        /**
+         * 当前序列
+         */
+        String currSeq;
+        /**
+         * 前序序列的序号
+         */
+        long preSeq = ChildIndex.NONE;
+        /**
+         * 重入次数，0表示还在等待
+         */
+        int holdCount;
+        /**
+         * 获取到锁的时间
+         */
+        long acquiredAt;
+
+        LockData(String resName) {
+            this.resName = resName;
+        }
+    }
+
+    /**
+     * 进程内的锁队列
+     * 以下字段只在持有本地锁时读写
+     */
+    private static class Cohort {
+        /**
+         * 本地锁，公平模式保证本地按到达顺序转交
+         */
+        final ReentrantLock local = new ReentrantLock(true);
+        /**
+         * 本进程是否持有zk锁
+         */
+        boolean held;
+        /**
+         * 本进程持有的临时节点
+         */
+        String seq;
+        /**
+         * 已连续转交的次数
+         */
+        int passes;
+        /**
+         * 当前持有者获取到锁的时间
+         */
+        long acquiredAt;
+    }
+
+    static class ZKHelper {
         static final String ZKSERVER = "127.0.0.1:2182";
         static final int SESSIONTIMEOUT = 5000;
+        /**
+         * 系统参数 zk服务地址，多个集群的地址之间以;分隔，所有进程须按相同顺序配置
+         */
+        static final String PROP_SERVERS = "zklock.servers";
+        /**
+         * 系统参数 连接池中每个集群的会话数，默认1个
+         */
+        static final String PROP_SESSIONS = "zklock.sessions";
 
         /**
          * 进行zk连接
          */
         public static ZooKeeper getConn() {
+            return getConn(ZKSERVER);
+        }
+
+        /**
+         * 创建连接池
+         * 服务地址和每个集群的会话数由系统参数{@link #PROP_SERVERS}、{@link #PROP_SESSIONS}指定，每个会话有独立的事件线程
+         *
+         * @return 集群 -> 该集群的会话，集群顺序与配置一致
+         */
+        public static ZooKeeper[][] getConns() {
+            String[] servers = System.getProperty(PROP_SERVERS, ZKSERVER).split(";");
+            int size = Math.max(1, Integer.getInteger(PROP_SESSIONS, 1));
+            ZooKeeper[][] conns = new ZooKeeper[servers.length][size];
+            for (int i = 0; i < servers.length; i++) {
+                for (int j = 0; j < size; j++) {
+                    conns[i][j] = getConn(servers[i].trim());
+                }
+            }
+            return conns;
+        }
+
+        /**
+         * 进行zk连接
+         *
+         * @param connectString zk服务地址
+         */
+        public static ZooKeeper getConn(String connectString) {
             ZooKeeper zk = null;
             try {
-                zk = new ZooKeeper(ZKSERVER, SESSIONTIMEOUT, null);
+                zk = new ZooKeeper(connectString, SESSIONTIMEOUT, null);
                 Stat stat = zk.exists(NODEPATH_ROOTLOCK, null);
                 if (stat == null) {
-                    zk.create(NODEPATH_ROOTLOCK, "lock".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                    try {
+                        zk.create(NODEPATH_ROOTLOCK, "lock".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                    } catch (KeeperException.NodeExistsException ignored) {
+                    }
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -269,6 +1031,60 @@ public class ZKLock {
             return zk;
         }
 
+        /**
+         * 异步创建节点并等待结果，等待期间被中断时继续等待，拿到结果后再恢复中断状态
+         * 同步创建被中断时请求可能已在服务端执行，临时节点已创建却没有记录，直到会话结束都不会删除
+         *
+         * @return 创建的节点路径
+         */
+        static String create(ZooKeeper zk, String path, byte[] data, CreateMode mode) throws KeeperException {
+            final CompletableFuture<String> created = new CompletableFuture<String>();
+            zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, mode, new AsyncCallback.StringCallback() {
+                @Override
+                public void processResult(int rc, String path, Object ctx, String name) {
+                    if (rc == KeeperException.Code.OK.intValue()) {
+                        created.complete(name);
+                    } else {
+                        created.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+                    }
+                }
+            }, null);
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return created.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                throw (KeeperException) e.getCause();
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * 删除节点，被中断时再删除一次保证节点被删除，之后恢复中断状态
+         */
+        static void delete(ZooKeeper zk, String path) {
+            try {
+                zk.delete(path, -1);
+            } catch (KeeperException.NoNodeException ignored) {
+            } catch (KeeperException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                try {
+                    zk.delete(path, -1);
+                } catch (Exception ignored) {
+                }
+                Thread.currentThread().interrupt();
+            }
+        }
+
         /**
          * 关闭连接
          *
@@ -0,0 +1,633 @@
+package demo;
+
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于所有权租约的分布式锁
+ * 同一批进程高频争用同一资源时，{@link ZKLock}每次加锁都要在zk中创建、删除节点。
+ * 所有权模式下，进程先在/lock/owner_资源（或分区）下创建临时节点owner取得所有权，之后该资源的加锁只使用本地的ReentrantLock，不访问zk。
+ * 其他进程需要该资源时在同一节点下创建临时有序的request_节点，持有者监听到请求后（至少持有minHold之后）停止本地分配，
+ * 本地持有和等待的线程全部释放后删除owner节点，请求中序号最小的进程取得所有权，之后本进程的线程同样以请求排队。
+ * 开启分区时资源按名称的哈希值对分区数取模固定映射到分区，所有权以分区为单位，一次交接转移整个分区的资源。
+ * 分区数（不分区为0）记录在/lock/ownership_partitions中，所有进程必须一致，否则同一资源会映射到不同的owner节点而失去互斥，
+ * 与记录不一致的实例创建时直接失败；修改分区数需要停止所有进程并删除该节点。
+ * 同一分区的资源可以嵌套加锁：已持有分区中资源的线程在交接期间仍可继续加锁同一分区的其他资源，否则它等待交接、交接等待它释放，形成死锁。
+ * 会话断开期间停止本地分配（已持有的线程不受影响），重新连接后继续；会话过期后所有权随临时节点失效。
+ * 向zk发出的创建请求都等到结果后才返回，被中断时恢复中断状态，不会遗留没有记录的请求或owner节点
+ */
+public class ZKOwnershipLock {
+    /**
+     * 节点路径 锁的根节点
+     */
+    private static final String NODEPATH_ROOTLOCK = "/lock";
+    /**
+     * 节点名称 所有权节点的起始名称
+     */
+    private static final String NODENAME_BEGIN = "owner_";
+    /**
+     * 节点名称 持有者
+     */
+    private static final String NODENAME_OWNER = "owner";
+    /**
+     * 节点名称 交接请求前缀
+     */
+    private static final String NODENAME_REQUEST = "request_";
+    /**
+     * 节点名称 分区数记录
+     */
+    private static final String NODENAME_PARTITIONS = "ownership_partitions";
+    /**
+     * 是否输出所有权取得和交接的日志，由系统参数zklock.log开启
+     */
+    private static final boolean LOG_ENABLED = Boolean.getBoolean("zklock.log");
+    /**
+     * 删除owner节点失败后的重试间隔
+     */
+    private static final long RETRY_MILLIS = 1000;
+
+    private final ZooKeeper zk;
+    /**
+     * 分区数，0表示每个资源单独取得所有权
+     */
+    private final int partitions;
+    /**
+     * 取得所有权后至少持有的时间，避免所有权在进程间频繁来回
+     */
+    private final long minHoldNanos;
+    /**
+     * 写入owner节点的本进程标识
+     */
+    private final String ownerId = ManagementFactory.getRuntimeMXBean().getName();
+    private final ConcurrentMap<String, Ownership> ownerships = new ConcurrentHashMap<String, Ownership>();
+    private final ConcurrentMap<String, ReentrantLock> locks = new ConcurrentHashMap<String, ReentrantLock>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ownership-handoff");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicLong localGrants = new AtomicLong();
+    private final AtomicLong claims = new AtomicLong();
+    private final AtomicLong handoffs = new AtomicLong();
+
+    /**
+     * @param partitions 分区数，0表示每个资源单独取得所有权
+     * @param minHold    取得所有权后至少持有的时间
+     * @param unit       时间单位
+     * @throws IllegalStateException 分区数与zk中记录的不一致，或访问zk失败
+     */
+    public ZKOwnershipLock(int partitions, long minHold, TimeUnit unit) {
+        if (partitions < 0) {
+            throw new IllegalArgumentException("partitions: " + partitions);
+        }
+        this.zk = ZKLock.ZKHelper.getConn();
+        this.partitions = partitions;
+        this.minHoldNanos = unit.toNanos(minHold);
+        try {
+            checkPartitions();
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * 记录分区数，已有记录时校验一致
+     */
+    private void checkPartitions() {
+        String path = NODEPATH_ROOTLOCK + "/" + NODENAME_PARTITIONS;
+        String expected = String.valueOf(partitions);
+        try {
+            try {
+                ZKLock.ZKHelper.create(zk, path, expected.getBytes(), CreateMode.PERSISTENT);
+                return;
+            } catch (KeeperException.NodeExistsException ignored) {
+            }
+            String recorded = new String(zk.getData(path, false, null));
+            if (!recorded.equals(expected)) {
+                throw new IllegalStateException("partitions mismatch: " + partitions + ", recorded: " + recorded);
+            }
+        } catch (KeeperException e) {
+            throw new IllegalStateException("check partitions failed: " + path, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("check partitions interrupted: " + path, e);
+        }
+    }
+
+    /**
+     * 关闭会话和交接线程，本进程的所有权和请求随临时节点删除
+     */
+    public void close() {
+        scheduler.shutdownNow();
+        ZKLock.ZKHelper.close(zk);
+    }
+
+    /**
+     * 输出日志，调用处需先判断{@link #LOG_ENABLED}
+     */
+    private static void log(String mess) {
+        System.out.println(System.currentTimeMillis() + " " + Thread.currentThread().getId() + " " + mess);
+    }
+
+    /**
+     * 加锁，不响应中断，被中断时加锁后恢复中断状态
+     */
+    public void lock(String resName) {
+        try {
+            acquire(resName, -1, false);
+        } catch (InterruptedException e) {
+            //不响应中断的加锁不会抛出中断异常
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 可中断加锁
+     */
+    public void lockInterruptibly(String resName) throws InterruptedException {
+        acquire(resName, -1, true);
+    }
+
+    /**
+     * 限时加锁
+     *
+     * @return 加锁结果
+     */
+    public boolean tryLock(String resName, long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(resName, Math.max(0, unit.toNanos(timeout)), true);
+    }
+
+    /**
+     * 释放锁，最外层释放时归还所有权的使用计数
+     */
+    public void unLock(String resName) {
+        ReentrantLock local = locks.get(resName);
+        if (local == null || !local.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("not owner of lock: " + resName);
+        }
+        boolean outermost = local.getHoldCount() == 1;
+        local.unlock();
+        if (outermost) {
+            getOwnership(resName).exit();
+        }
+    }
+
+    /**
+     * 本进程当前是否持有资源的所有权
+     */
+    public boolean isOwner(String resName) {
+        Ownership ownership = getOwnership(resName);
+        synchronized (ownership) {
+            return ownership.owned && !ownership.releasing;
+        }
+    }
+
+    /**
+     * 在本地完成的加锁次数
+     */
+    public long getLocalGrants() {
+        return localGrants.get();
+    }
+
+    /**
+     * 通过zk取得所有权的次数
+     */
+    public long getClaims() {
+        return claims.get();
+    }
+
+    /**
+     * 交出所有权的次数
+     */
+    public long getHandoffs() {
+        return handoffs.get();
+    }
+
+    /**
+     * @param nanosTimeout  最长等待时间（纳秒），小于0表示一直等待
+     * @param interruptible 是否响应中断，不响应时被中断后重新尝试，加锁后恢复中断状态
+     */
+    private boolean acquire(String resName, long nanosTimeout, boolean interruptible) throws InterruptedException {
+        long deadline = System.nanoTime() + nanosTimeout;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return acquire(resName, nanosTimeout, deadline);
+                } catch (InterruptedException e) {
+                    if (interruptible) {
+                        throw e;
+                    }
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 尝试一次加锁，被中断时已登记的使用已归还
+     */
+    private boolean acquire(String resName, long nanosTimeout, long deadline) throws InterruptedException {
+        ReentrantLock local = getLock(resName);
+        //重入不再检查所有权
+        if (local.isHeldByCurrentThread()) {
+            local.lock();
+            return true;
+        }
+        Ownership ownership = getOwnership(resName);
+        if (!ownership.enter(nanosTimeout, deadline)) {
+            return false;
+        }
+        boolean locked = false;
+        try {
+            if (nanosTimeout < 0) {
+                local.lockInterruptibly();
+                locked = true;
+            } else {
+                locked = local.tryLock(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            if (!locked) {
+                ownership.exit();
+            }
+        }
+        if (locked) {
+            localGrants.incrementAndGet();
+        }
+        return locked;
+    }
+
+    private ReentrantLock getLock(String resName) {
+        ReentrantLock local = locks.get(resName);
+        if (local == null) {
+            ReentrantLock created = new ReentrantLock();
+            local = locks.putIfAbsent(resName, created);
+            if (local == null) {
+                local = created;
+            }
+        }
+        return local;
+    }
+
+    /**
+     * 资源所属的所有权，开启分区时按名称哈希到分区
+     */
+    private Ownership getOwnership(String resName) {
+        String name = partitions == 0 ? "res_" + resName
+                : "partition_" + (resName.hashCode() & Integer.MAX_VALUE) % partitions;
+        Ownership ownership = ownerships.get(name);
+        if (ownership == null) {
+            Ownership created = new Ownership(NODEPATH_ROOTLOCK + "/" + NODENAME_BEGIN + name);
+            ownership = ownerships.putIfAbsent(name, created);
+            if (ownership == null) {
+                ownership = created;
+            }
+        }
+        return ownership;
+    }
+
+    /**
+     * 一个资源或分区的所有权，状态在该对象上加锁
+     */
+    private class Ownership implements Watcher, AsyncCallback.ChildrenCallback, AsyncCallback.VoidCallback {
+        final String path;
+        /**
+         * 是否持有owner节点
+         */
+        boolean owned;
+        /**
+         * 是否有线程正在向zk申请所有权
+         */
+        boolean claiming;
+        /**
+         * 收到交接请求，停止本地分配
+         */
+        boolean handoff;
+        /**
+         * 正在删除owner节点
+         */
+        boolean releasing;
+        /**
+         * 连接断开，暂停本地分配
+         */
+        boolean suspended;
+        /**
+         * 已安排在minHold到期后重新检查请求
+         */
+        boolean recheckScheduled;
+        /**
+         * 持有或等待本地锁的线程 -> 登记的使用次数，同一线程嵌套加锁同一分区的资源时大于1
+         */
+        final Map<Thread, Integer> holders = new HashMap<Thread, Integer>();
+        long ownedSince;
+
+        Ownership(String path) {
+            this.path = path;
+        }
+
+        /**
+         * 登记一次使用，没有所有权时由一个线程向zk申请，其他线程在本地等待
+         * 交接期间已登记过的线程仍可登记，交接要等它全部归还后才进行
+         */
+        boolean enter(long nanosTimeout, long deadline) throws InterruptedException {
+            synchronized (this) {
+                while (true) {
+                    if (owned && !suspended && (!handoff || holders.containsKey(Thread.currentThread()))) {
+                        hold();
+                        return true;
+                    }
+                    if (!owned && !claiming) {
+                        claiming = true;
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (nanosTimeout < 0) {
+                        wait();
+                    } else if (remaining <= 0) {
+                        return false;
+                    } else {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                }
+            }
+            boolean claimed = false;
+            try {
+                claimed = claim(nanosTimeout, deadline);
+            } finally {
+                synchronized (this) {
+                    claiming = false;
+                    if (claimed) {
+                        owned = true;
+                        handoff = false;
+                        ownedSince = System.nanoTime();
+                        hold();
+                    }
+                    notifyAll();
+                }
+            }
+            if (claimed) {
+                claims.incrementAndGet();
+                //监听其他进程的交接请求
+                zk.getChildren(path, this, this, null);
+            }
+            return claimed;
+        }
+
+        /**
+         * 归还一次使用，交接中最后一个线程退出时删除owner节点
+         */
+        void exit() {
+            boolean release;
+            synchronized (this) {
+                Thread thread = Thread.currentThread();
+                int count = holders.get(thread);
+                if (count == 1) {
+                    holders.remove(thread);
+                } else {
+                    holders.put(thread, count - 1);
+                }
+                release = holders.isEmpty() && handoff && !releasing;
+                if (release) {
+                    releasing = true;
+                }
+            }
+            if (release) {
+                release();
+            }
+        }
+
+        /**
+         * 当前线程登记一次使用，在this上加锁调用
+         */
+        private void hold() {
+            Thread thread = Thread.currentThread();
+            Integer count = holders.get(thread);
+            holders.put(thread, count == null ? 1 : count + 1);
+        }
+
+        /**
+         * 排队取得所有权：创建请求节点，没有持有者且自己的请求序号最小时创建owner节点
+         */
+        private boolean claim(long nanosTimeout, long deadline) throws InterruptedException {
+            String request = null;
+            try {
+                try {
+                    zk.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                } catch (KeeperException.NodeExistsException ignored) {
+                }
+                String created = ZKLock.ZKHelper.create(zk, path + "/" + NODENAME_REQUEST, new byte[0],
+                        CreateMode.EPHEMERAL_SEQUENTIAL);
+                request = created.substring(created.lastIndexOf('/') + 1);
+                while (true) {
+                    final CountDownLatch latch = new CountDownLatch(1);
+                    List<String> children = zk.getChildren(path, new Watcher() {
+                        @Override
+                        public void process(WatchedEvent watchedEvent) {
+                            latch.countDown();
+                        }
+                    });
+                    if (!children.contains(NODENAME_OWNER) && request.equals(firstRequest(children))) {
+                        try {
+                            ZKLock.ZKHelper.create(zk, path + "/" + NODENAME_OWNER, ownerId.getBytes(), CreateMode.EPHEMERAL);
+                            if (LOG_ENABLED) {
+                                log("claim ownership: " + path + " !");
+                            }
+                            return true;
+                        } catch (KeeperException.NodeExistsException ignored) {
+                            continue;
+                        }
+                    }
+                    if (nanosTimeout < 0) {
+                        latch.await();
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        latch.await(remaining, TimeUnit.NANOSECONDS);
+                    }
+                }
+            } catch (KeeperException e) {
+                throw new IllegalStateException("claim ownership failed: " + path, e);
+            } finally {
+                //取得所有权或放弃时都删除请求节点，同一会话的请求按顺序执行，之后读取的子节点中不会再有它
+                if (request != null) {
+                    zk.delete(path + "/" + request, -1, new VoidCallback() {
+                        @Override
+                        public void processResult(int rc, String path, Object ctx) {
+                        }
+                    }, null);
+                }
+            }
+        }
+
+        /**
+         * 收到交接请求，持有未满minHold时推迟到期后再检查
+         */
+        private void requestHandoff() {
+            boolean release = false;
+            synchronized (this) {
+                if (!owned || handoff) {
+                    return;
+                }
+                long remaining = ownedSince + minHoldNanos - System.nanoTime();
+                if (remaining > 0) {
+                    if (!recheckScheduled) {
+                        recheckScheduled = true;
+                        schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (Ownership.this) {
+                                    recheckScheduled = false;
+                                }
+                                //请求方可能已经放弃，重新读取请求
+                                zk.getChildren(path, Ownership.this, Ownership.this, null);
+                            }
+                        }, remaining, TimeUnit.NANOSECONDS);
+                    }
+                    return;
+                }
+                handoff = true;
+                if (holders.isEmpty()) {
+                    release = true;
+                    releasing = true;
+                }
+            }
+            if (release) {
+                release();
+            }
+        }
+
+        private void release() {
+            zk.delete(path + "/" + NODENAME_OWNER, -1, this, null);
+        }
+
+        /**
+         * 删除owner节点的回调
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx) {
+            if (rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NONODE.intValue()) {
+                //连接断开等，稍后重试
+                schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        release();
+                    }
+                }, RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                return;
+            }
+            synchronized (this) {
+                owned = false;
+                handoff = false;
+                releasing = false;
+                notifyAll();
+            }
+            handoffs.incrementAndGet();
+            if (LOG_ENABLED) {
+                log("hand off ownership: " + this.path + "...");
+            }
+        }
+
+        /**
+         * 读取子节点的回调，有其他进程的请求时准备交接
+         */
+        @Override
+        public void processResult(int rc, String path, Object ctx, List<String> children) {
+            if (rc == KeeperException.Code.OK.intValue() && firstRequest(children) != null) {
+                requestHandoff();
+            }
+        }
+
+        @Override
+        public void process(WatchedEvent watchedEvent) {
+            if (watchedEvent.getType() == Event.EventType.NodeChildrenChanged) {
+                boolean owning;
+                synchronized (this) {
+                    owning = owned && !releasing;
+                }
+                if (owning) {
+                    zk.getChildren(path, this, this, null);
+                }
+                return;
+            }
+            if (watchedEvent.getType() != Event.EventType.None) {
+                return;
+            }
+            synchronized (this) {
+                switch (watchedEvent.getState()) {
+                    case Disconnected:
+                        //断开期间会话可能过期，所有权可能已转移，停止本地分配
+                        suspended = true;
+                        break;
+                    case SyncConnected:
+                        suspended = false;
+                        notifyAll();
+                        break;
+                    case Expired:
+                        owned = false;
+                        handoff = false;
+                        releasing = false;
+                        suspended = false;
+                        notifyAll();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 延迟执行交接任务，关闭后会话的回调仍可能到达，此时丢弃
+     */
+    private void schedule(Runnable task, long delay, TimeUnit unit) {
+        try {
+            scheduler.schedule(task, delay, unit);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    /**
+     * 序号最小的请求节点，没有请求时返回空
+     */
+    private static String firstRequest(List<String> children) {
+        String first = null;
+        for (String child : children) {
+            if (child.startsWith(NODENAME_REQUEST)
+                    && (first == null || ZKLock.SEQUENCE_ORDER.compare(child, first) < 0)) {
+                first = child;
+            }
+        }
+        return first;
+    }
+}
@@ -0,0 +1,328 @@
+package demo;
+
+
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于Zookeeper的分布式读写锁实现
+ * 与{@link ZKLock}共用/lock/lock_资源名称 节点，读锁与写锁分别以read_、write_为前缀创建临时有序节点。
+ * 读锁只等待序列在它之前的最近一个写锁，多个读锁可同时持有；写锁等待序列在它之前的任意一个节点。
+ * {@link ZKLock}创建的互斥节点按写锁对待，两者可以在同一资源上混用。
+ * 持有写锁的线程可以再加读锁（降级）：读锁不再创建节点，与写锁共用写锁节点，读写锁都释放后才删除，期间其他读锁仍需等待；
+ * 持有读锁的线程加写锁会等待自己的读锁，直接抛出IllegalMonitorStateException
+ */
+public class ZKReadWriteLock {
+    /**
+     * 节点名称 读锁前缀
+     */
+    private static final String NODENAME_READ = "read_";
+    /**
+     * 节点名称 写锁前缀
+     */
+    private static final String NODENAME_WRITE = "write_";
+    /**
+     * 是否输出加锁过程的日志，由系统参数zklock.log开启
+     */
+    private static final boolean LOG_ENABLED = Boolean.getBoolean("zklock.log");
+    /**
+     * zk读写锁
+     */
+    private static ZKReadWriteLock lock;
+    /**
+     * zk 连接
+     */
+    private ZooKeeper zk;
+    /**
+     * 线程级缓存 锁节点前缀+资源名称 -> 当前线程的加锁状态
+     */
+    private ThreadLocal<Map<String, LockData>> threadlocal = new ThreadLocal<Map<String, LockData>>() {
+        @Override
+        protected Map<String, LockData> initialValue() {
+            return new HashMap<String, LockData>();
+        }
+    };
+
+    private ZKReadWriteLock() {
+        zk = ZKLock.ZKHelper.getConn();
+    }
+
+    /**
+     * 单例
+     */
+    public static synchronized ZKReadWriteLock getInstance() {
+        if (lock == null) {
+            lock = new ZKReadWriteLock();
+        }
+        return lock;
+    }
+
+    /**
+     * 输出日志，调用处需先判断{@link #LOG_ENABLED}，避免在加锁路径上拼接字符串
+     */
+    private static void log(String mess) {
+        System.out.println(System.currentTimeMillis() + " " + Thread.currentThread().getId() + " " + mess);
+    }
+
+    /**
+     * 加读锁
+     */
+    public void lockRead(String resName) {
+        lock(resName, NODENAME_READ);
+    }
+
+    /**
+     * 限时加读锁，超时或被中断时删除本次创建的临时节点
+     */
+    public boolean tryLockRead(String resName, long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(resName, NODENAME_READ, Math.max(0, unit.toNanos(timeout)), true);
+    }
+
+    /**
+     * 释放读锁
+     */
+    public void unLockRead(String resName) {
+        release(resName, NODENAME_READ);
+    }
+
+    /**
+     * 加写锁
+     */
+    public void lockWrite(String resName) {
+        lock(resName, NODENAME_WRITE);
+    }
+
+    /**
+     * 限时加写锁，超时或被中断时删除本次创建的临时节点
+     */
+    public boolean tryLockWrite(String resName, long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(resName, NODENAME_WRITE, Math.max(0, unit.toNanos(timeout)), true);
+    }
+
+    /**
+     * 释放写锁
+     */
+    public void unLockWrite(String resName) {
+        release(resName, NODENAME_WRITE);
+    }
+
+    private void lock(String resName, String prefix) {
+        try {
+            acquire(resName, prefix, -1, false);
+        } catch (InterruptedException e) {
+            //不响应中断的加锁不会抛出中断异常
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 加锁
+     * 当前线程已持有同类型的锁时只增加持有次数；否则创建临时有序节点，循环判断并等待需要等待的前序节点
+     *
+     * @param resName       资源名称
+     * @param prefix        锁节点前缀
+     * @param nanosTimeout  最长等待时间（纳秒），小于0表示一直等待
+     * @param interruptible 是否响应中断
+     * @return 加锁结果
+     */
+    private boolean acquire(String resName, String prefix, long nanosTimeout, boolean interruptible) throws
+            InterruptedException {
+        String key = prefix + resName;
+        LockData data = threadlocal.get().get(key);
+        //重入
+        if (data != null) {
+            data.holdCount++;
+            return true;
+        }
+        boolean read = NODENAME_READ.equals(prefix);
+        LockData other = threadlocal.get().get((read ? NODENAME_WRITE : NODENAME_READ) + resName);
+        if (other != null) {
+            if (!read) {
+                throw new IllegalMonitorStateException("cannot upgrade read lock to write lock: " + resName);
+            }
+            //降级，共用写锁节点
+            data = new LockData();
+            data.currSeq = other.currSeq;
+            data.holdCount = 1;
+            threadlocal.get().put(key, data);
+            return true;
+        }
+        data = new LockData();
+        threadlocal.get().put(key, data);
+        String lockPath = ZKLock.getLockPath(resName);
+        long deadline = System.nanoTime() + nanosTimeout;
+        boolean acquired = false;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    //创建被中断时也会等到结果，不响应中断的加锁重试时不再创建
+                    if (data.currSeq == null) {
+                        data.currSeq = createNode(lockPath, prefix + resName);
+                    }
+                    String waitSeq = getWaitSeq(lockPath, data.currSeq, read);
+                    if (waitSeq == null) {
+                        if (LOG_ENABLED) {
+                            log("get " + data.currSeq + " !");
+                        }
+                        data.holdCount = 1;
+                        acquired = true;
+                        return true;
+                    }
+                    long remaining = -1;
+                    if (nanosTimeout >= 0) {
+                        remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                    }
+                    wait4Delete(lockPath + "/" + waitSeq, remaining);
+                } catch (InterruptedException e) {
+                    if (interruptible) {
+                        throw e;
+                    }
+                    interrupted = true;
+                }
+            }
+        } catch (KeeperException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (!acquired) {
+                threadlocal.get().remove(key);
+                if (data.currSeq != null) {
+                    delete(lockPath + "/" + data.currSeq);
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 在锁资源节点下创建临时有序节点，锁资源节点不存在时先创建
+     * 临时节点异步创建并等到结果，被中断时不会遗留没有记录的节点
+     *
+     * @return 创建的节点名称
+     */
+    private String createNode(String lockPath, String nodeName) throws KeeperException, InterruptedException {
+        String path;
+        try {
+            path = ZKLock.ZKHelper.create(zk, lockPath + "/" + nodeName, nodeName.getBytes(),
+                    CreateMode.EPHEMERAL_SEQUENTIAL);
+        } catch (KeeperException.NoNodeException e) {
+            try {
+                zk.create(lockPath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException ignored) {
+            }
+            path = ZKLock.ZKHelper.create(zk, lockPath + "/" + nodeName, nodeName.getBytes(),
+                    CreateMode.EPHEMERAL_SEQUENTIAL);
+        }
+        return path.substring(path.lastIndexOf("/") + 1);
+    }
+
+    /**
+     * 获取当前节点需要等待的前序节点
+     * 读锁等待序列在它之前最近的写锁节点，写锁等待紧邻的前一个节点
+     *
+     * @return 需要等待的节点名称，为空表示已获取到锁
+     */
+    private String getWaitSeq(String lockPath, String currSeq, boolean read) throws KeeperException,
+            InterruptedException {
+        List<String> children = zk.getChildren(lockPath, null);
+        Collections.sort(children, ZKLock.SEQUENCE_ORDER);
+        int index = Collections.binarySearch(children, currSeq, ZKLock.SEQUENCE_ORDER);
+        if (index < 0) {
+            //当前节点已不存在（会话过期等）
+            throw KeeperException.create(KeeperException.Code.NONODE, lockPath + "/" + currSeq);
+        }
+        if (!read) {
+            return index == 0 ? null : children.get(index - 1);
+        }
+        for (int i = index - 1; i >= 0; i--) {
+            if (!children.get(i).startsWith(NODENAME_READ)) {
+                return children.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 等待节点被删除
+     *
+     * @param nanosTimeout 最长等待时间（纳秒），小于0表示一直等待
+     */
+    private void wait4Delete(final String path, long nanosTimeout) throws KeeperException, InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Stat stat = zk.exists(path, new Watcher() {
+            @Override
+            public void process(WatchedEvent watchedEvent) {
+                if (path.equals(watchedEvent.getPath())) {
+                    latch.countDown();
+                }
+            }
+        });
+        //节点在加监听前已被删除
+        if (stat == null) {
+            return;
+        }
+        if (LOG_ENABLED) {
+            log("wait " + path + "...");
+        }
+        if (nanosTimeout < 0) {
+            latch.await();
+        } else {
+            latch.await(nanosTimeout, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 释放锁，最外层释放时删除临时节点；降级后读写锁共用的节点在两者都释放后删除
+     */
+    private void release(String resName, String prefix) {
+        String key = prefix + resName;
+        LockData data = threadlocal.get().get(key);
+        if (data == null) {
+            throw new IllegalMonitorStateException("not owner of lock: " + key);
+        }
+        if (--data.holdCount > 0) {
+            return;
+        }
+        threadlocal.get().remove(key);
+        LockData other = threadlocal.get().get((NODENAME_READ.equals(prefix) ? NODENAME_WRITE : NODENAME_READ) + resName);
+        if (other != null && other.currSeq.equals(data.currSeq)) {
+            return;
+        }
+        delete(ZKLock.getLockPath(resName) + "/" + data.currSeq);
+        if (LOG_ENABLED) {
+            log("release " + data.currSeq + "...");
+        }
+    }
+
+    private void delete(String path) {
+        ZKLock.ZKHelper.delete(zk, path);
+    }
+
+    /**
+     * 线程对某个资源的加锁状态
+     */
+    private static class LockData {
+        /**
+         * 当前序列
+         */
+        String currSeq;
+        /**
+         * 重入次数，0表示还在等待
+         */
+        int holdCount;
+    }
+}
@@ -0,0 +1,311 @@
+package demo;
+
+
+import org.apache.zookeeper.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于Zookeeper的分布式信号量实现
+ * 每个进程以租约为单位向zk申请许可：在/lock/semaphore_资源名称 下创建临时有序节点，节点名称中带有租约的许可数，
+ * 按序号排在它之前（含自己）的所有租约许可数之和不超过总许可数时租约生效，与{@link ZKLock}一样按请求顺序公平获取。
+ * 每个进程同一时间最多持有一个租约，租约中的许可在进程内直接分配给本地线程，不再访问zk；
+ * 本地许可全部归还且没有等待线程，或租约分配次数达到上限时才删除租约节点
+ */
+public class ZKSemaphore {
+    /**
+     * 节点名称 信号量起始名称
+     */
+    private static final String NODENAME_BEGIN = "semaphore_";
+    /**
+     * 节点名称 租约前缀，后接许可数
+     */
+    private static final String NODENAME_LEASE = "lease_";
+    /**
+     * 一个租约在本地的最大分配次数
+     */
+    private static final int MAX_LEASE_GRANTS = 64;
+    /**
+     * 是否输出租约申请和释放的日志，由系统参数zklock.log开启
+     */
+    private static final boolean LOG_ENABLED = Boolean.getBoolean("zklock.log");
+    /**
+     * zk 连接
+     */
+    private ZooKeeper zk;
+    /**
+     * 信号量节点路径
+     */
+    private final String semPath;
+    /**
+     * 总许可数，以信号量节点中保存的值为准
+     */
+    private final int maxPermits;
+    /**
+     * 每次向zk申请的许可数
+     */
+    private final int leaseSize;
+    /**
+     * 本进程持有的租约节点
+     */
+    private String lease;
+    /**
+     * 租约中未分配的许可数
+     */
+    private int free;
+    /**
+     * 本地线程正在使用的许可数
+     */
+    private int inUse;
+    /**
+     * 当前租约已分配的次数
+     */
+    private int grants;
+    /**
+     * 本地等待许可的线程数
+     */
+    private int waiters;
+    /**
+     * 是否有线程正在向zk申请租约
+     */
+    private boolean leasing;
+    /**
+     * 当前租约是否已停止分配，等待许可全部归还后释放
+     */
+    private boolean retiring;
+
+    /**
+     * @param resName    资源名称
+     * @param maxPermits 总许可数，信号量节点已存在时以节点中保存的值为准
+     * @param leaseSize  每次向zk申请的许可数，也是本进程可同时使用的许可数
+     */
+    public ZKSemaphore(String resName, int maxPermits, int leaseSize) {
+        if (maxPermits <= 0 || leaseSize <= 0 || leaseSize > maxPermits) {
+            throw new IllegalArgumentException("maxPermits: " + maxPermits + " leaseSize: " + leaseSize);
+        }
+        this.zk = ZKLock.ZKHelper.getConn();
+        this.semPath = "/lock/" + NODENAME_BEGIN + resName;
+        this.leaseSize = leaseSize;
+        this.maxPermits = initSemaphore(maxPermits);
+        if (leaseSize > this.maxPermits) {
+            throw new IllegalArgumentException("leaseSize: " + leaseSize + " > maxPermits: " + this.maxPermits);
+        }
+    }
+
+    /**
+     * 输出日志，调用处需先判断{@link #LOG_ENABLED}
+     */
+    private static void log(String mess) {
+        System.out.println(System.currentTimeMillis() + " " + Thread.currentThread().getId() + " " + mess);
+    }
+
+    /**
+     * 创建信号量节点，返回节点中保存的总许可数
+     */
+    private int initSemaphore(int maxPermits) {
+        try {
+            try {
+                zk.create(semPath, String.valueOf(maxPermits).getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.PERSISTENT);
+                return maxPermits;
+            } catch (KeeperException.NodeExistsException e) {
+                return Integer.parseInt(new String(zk.getData(semPath, null, null)));
+            }
+        } catch (KeeperException e) {
+            throw new IllegalStateException("init semaphore failed: " + semPath, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("init semaphore interrupted: " + semPath, e);
+        }
+    }
+
+    /**
+     * 获取一个许可，返回时一定持有许可
+     *
+     * @throws IllegalStateException 访问zk失败（连接断开、会话过期等）
+     */
+    public void acquire() throws InterruptedException {
+        acquire(-1);
+    }
+
+    /**
+     * 限时获取一个许可
+     *
+     * @return 是否获取到许可，只在超时时返回false
+     * @throws IllegalStateException 访问zk失败（连接断开、会话过期等）
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(Math.max(0, unit.toNanos(timeout)));
+    }
+
+    /**
+     * 关闭会话，本进程的租约随临时节点删除
+     */
+    public void close() {
+        ZKLock.ZKHelper.close(zk);
+    }
+
+    /**
+     * 归还一个许可
+     * 租约的许可全部归还后，如果本地没有等待线程或租约已停止分配，则删除租约节点，把许可还给其他进程
+     */
+    public void release() {
+        String expired = null;
+        synchronized (this) {
+            if (inUse == 0) {
+                throw new IllegalStateException("no permit in use: " + semPath);
+            }
+            inUse--;
+            free++;
+            if (inUse == 0 && (retiring || waiters == 0)) {
+                expired = lease;
+                lease = null;
+                free = 0;
+                grants = 0;
+                retiring = false;
+            }
+            if (waiters > 0) {
+                notifyAll();
+            }
+        }
+        if (expired != null) {
+            deleteLease(expired);
+        }
+    }
+
+    /**
+     * 获取许可
+     * 本地租约有空闲许可时直接分配；本进程没有租约时由一个线程向zk申请，其他线程在本地等待。
+     * 一个租约最多在本地分配{@link #MAX_LEASE_GRANTS}次，之后停止分配并在许可全部归还后释放，
+     * 重新到zk中排队，避免本进程一直占用租约使其他进程饿死
+     *
+     * @param nanosTimeout 最长等待时间（纳秒），小于0表示一直等待
+     */
+    private boolean acquire(long nanosTimeout) throws InterruptedException {
+        long deadline = System.nanoTime() + nanosTimeout;
+        synchronized (this) {
+            waiters++;
+            try {
+                while (true) {
+                    if (lease != null && !retiring && free > 0) {
+                        free--;
+                        inUse++;
+                        if (++grants >= MAX_LEASE_GRANTS) {
+                            retiring = true;
+                        }
+                        return true;
+                    }
+                    if (lease == null && !leasing) {
+                        leasing = true;
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (nanosTimeout < 0) {
+                        wait();
+                    } else if (remaining <= 0) {
+                        return false;
+                    } else {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                }
+            } finally {
+                waiters--;
+            }
+        }
+        //向zk申请租约
+        String currSeq = null;
+        try {
+            currSeq = lease(nanosTimeout < 0 ? -1 : deadline - System.nanoTime());
+        } catch (KeeperException e) {
+            throw new IllegalStateException("lease failed: " + semPath, e);
+        } finally {
+            synchronized (this) {
+                leasing = false;
+                if (currSeq != null) {
+                    lease = currSeq;
+                    free = leaseSize - 1;
+                    inUse++;
+                    grants = 1;
+                }
+                notifyAll();
+            }
+        }
+        return currSeq != null;
+    }
+
+    /**
+     * 向zk申请一个租约
+     * 创建临时有序节点，等待排在前面的租约许可数之和加上本次的许可数不超过总许可数。
+     * 节点异步创建并等到结果，被中断时不会遗留没有记录、一直占用许可的租约节点
+     *
+     * @param nanosTimeout 最长等待时间（纳秒），小于0表示一直等待
+     * @return 租约节点名称，超时返回空
+     */
+    private String lease(long nanosTimeout) throws KeeperException, InterruptedException {
+        long deadline = System.nanoTime() + nanosTimeout;
+        String currSeq = null;
+        boolean acquired = false;
+        try {
+            String path = ZKLock.ZKHelper.create(zk, semPath + "/" + NODENAME_LEASE + leaseSize + "_", new byte[0],
+                    CreateMode.EPHEMERAL_SEQUENTIAL);
+            currSeq = path.substring(path.lastIndexOf("/") + 1);
+            while (true) {
+                final CountDownLatch latch = new CountDownLatch(1);
+                //对子节点变化加监听，任何租约释放都可能让出足够的许可
+                List<String> children = zk.getChildren(semPath, new Watcher() {
+                    @Override
+                    public void process(WatchedEvent watchedEvent) {
+                        latch.countDown();
+                    }
+                });
+                Collections.sort(children, ZKLock.SEQUENCE_ORDER);
+                int permits = 0;
+                for (String child : children) {
+                    permits += permitsOf(child);
+                    if (child.equals(currSeq)) {
+                        break;
+                    }
+                }
+                if (permits <= maxPermits) {
+                    if (LOG_ENABLED) {
+                        log("get lease: " + currSeq + " !");
+                    }
+                    acquired = true;
+                    return currSeq;
+                }
+                if (nanosTimeout < 0) {
+                    latch.await();
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    latch.await(remaining, TimeUnit.NANOSECONDS);
+                }
+            }
+        } finally {
+            //超时、中断或异常时删除已创建的租约节点
+            if (!acquired && currSeq != null) {
+                deleteLease(currSeq);
+            }
+        }
+    }
+
+    private void deleteLease(String lease) {
+        ZKLock.ZKHelper.delete(zk, semPath + "/" + lease);
+        if (LOG_ENABLED) {
+            log("release lease: " + lease + "...");
+        }
+    }
+
+    /**
+     * 从租约节点名称中解析许可数
+     */
+    private static int permitsOf(String node) {
+        int begin = NODENAME_LEASE.length();
+        return Integer.parseInt(node.substring(begin, node.indexOf('_', begin)));
+    }
+}
@@ -0,0 +1,413 @@
+package demo;
+
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 子树快照
+ * 把一棵子树的节点数据和zxid保存到本地的二进制文件中，进程启动时通过内存映射加载，节点数据直接引用映射区，不做拷贝。
+ * 加载后通过{@link #sync}与zk对齐：已知节点只取状态，czxid不同说明节点被重建，mzxid变化才重新获取数据，
+ * pzxid变化才重新获取子节点，新出现的节点完整获取。所有请求按层通过{@link ZKBulkClient}流水线发送。
+ * 文件格式：魔数、格式版本、节点数、根路径，之后按层序依次是每个节点的路径、czxid、mzxid、pzxid、version、cversion、数据
+ */
+public class ZKSnapshot {
+    /**
+     * 文件魔数 ZKSN
+     */
+    private static final int MAGIC = 0x5a4b534e;
+    /**
+     * 文件格式版本
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private final String root;
+    /**
+     * 节点路径 -> 节点，按层序排列
+     */
+    private final Map<String, Node> nodes;
+    /**
+     * 生成快照时获取数据的节点数
+     */
+    private final int dataFetches;
+    /**
+     * 生成快照时获取子节点的节点数
+     */
+    private final int childrenFetches;
+
+    private ZKSnapshot(String root, Map<String, Node> nodes, int dataFetches, int childrenFetches) {
+        this.root = root;
+        this.nodes = Collections.unmodifiableMap(nodes);
+        this.dataFetches = dataFetches;
+        this.childrenFetches = childrenFetches;
+    }
+
+    private static void log(String mess) {
+        System.out.println(System.currentTimeMillis() + " " + Thread.currentThread().getName() + " " + mess);
+    }
+
+    /**
+     * 从zk导出子树并保存到文件
+     *
+     * @param zk   zk 连接
+     * @param root 子树根路径
+     * @param file 快照文件
+     */
+    public static ZKSnapshot export(ZooKeeper zk, String root, File file) throws KeeperException,
+            InterruptedException, IOException {
+        ZKSnapshot snapshot = fetch(zk, root, Collections.<String, Node>emptyMap());
+        snapshot.save(file);
+        return snapshot;
+    }
+
+    /**
+     * 通过内存映射加载快照文件
+     */
+    public static ZKSnapshot load(File file) throws IOException {
+        MappedByteBuffer buffer;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            //映射建立后关闭通道不影响映射区
+            channel.close();
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("not a snapshot file: " + file);
+        }
+        int formatVersion = buffer.getInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("unsupported snapshot version: " + formatVersion);
+        }
+        int count = buffer.getInt();
+        String root = readString(buffer);
+        Map<String, Node> nodes = new LinkedHashMap<String, Node>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            String path = readString(buffer);
+            long czxid = buffer.getLong();
+            long mzxid = buffer.getLong();
+            long pzxid = buffer.getLong();
+            int version = buffer.getInt();
+            int cversion = buffer.getInt();
+            int length = buffer.getInt();
+            ByteBuffer data = buffer.duplicate();
+            ((Buffer) data).limit(buffer.position() + length);
+            ((Buffer) buffer).position(buffer.position() + length);
+            Node node = new Node(path, czxid, mzxid, pzxid, version, cversion, data.slice(), new ArrayList<String>());
+            nodes.put(path, node);
+            //层序保存，父节点一定已经加载
+            if (!path.equals(root)) {
+                Node parent = nodes.get(parentOf(path));
+                if (parent != null) {
+                    parent.children.add(path.substring(path.lastIndexOf('/') + 1));
+                }
+            }
+        }
+        return new ZKSnapshot(root, nodes, 0, 0);
+    }
+
+    /**
+     * 保存到文件，先写临时文件再替换，避免其他进程读到写了一半的快照
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(nodes.size());
+            writeString(out, root);
+            for (Node node : nodes.values()) {
+                writeString(out, node.path);
+                out.writeLong(node.czxid);
+                out.writeLong(node.mzxid);
+                out.writeLong(node.pzxid);
+                out.writeInt(node.version);
+                out.writeInt(node.cversion);
+                byte[] data = node.getData();
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 与zk对齐，返回新的快照，当前快照不变
+     * 未变化的节点沿用当前快照中的数据和子节点，只有状态请求
+     *
+     * @param zk zk 连接
+     */
+    public ZKSnapshot sync(ZooKeeper zk) throws KeeperException, InterruptedException {
+        return fetch(zk, root, nodes);
+    }
+
+    /**
+     * 按层获取子树，base中已有且未变化的部分不再获取
+     */
+    private static ZKSnapshot fetch(ZooKeeper zk, String root, Map<String, Node> base) throws KeeperException,
+            InterruptedException {
+        ZKBulkClient bulk = new ZKBulkClient(zk);
+        Map<String, Node> result = new LinkedHashMap<String, Node>(base.size() * 4 / 3 + 1);
+        int dataFetches = 0;
+        int childrenFetches = 0;
+        List<String> level = Collections.singletonList(root);
+        while (!level.isEmpty()) {
+            //已知节点只取状态
+            List<String> known = new ArrayList<String>();
+            for (String path : level) {
+                if (base.containsKey(path)) {
+                    known.add(path);
+                }
+            }
+            Map<String, Stat> stats = new HashMap<String, Stat>();
+            for (ZKBulkClient.Result<Stat> r : bulk.existsAll(known)) {
+                if (r.isOk()) {
+                    stats.put(r.getPath(), r.getStat());
+                } else if (r.getCode() != KeeperException.Code.NONODE) {
+                    r.get();
+                }
+            }
+            //新节点和重建的节点完整获取，已知节点按zxid判断
+            List<String> dataPaths = new ArrayList<String>();
+            List<String> childrenPaths = new ArrayList<String>();
+            for (String path : level) {
+                Node old = base.get(path);
+                Stat stat = stats.get(path);
+                if (old == null || (stat != null && stat.getCzxid() != old.czxid)) {
+                    dataPaths.add(path);
+                    childrenPaths.add(path);
+                } else if (stat != null) {
+                    if (stat.getMzxid() != old.mzxid) {
+                        dataPaths.add(path);
+                    }
+                    if (stat.getPzxid() != old.pzxid) {
+                        childrenPaths.add(path);
+                    }
+                }
+            }
+            Map<String, ZKBulkClient.Result<byte[]>> data = byPath(bulk.getAll(dataPaths));
+            Map<String, ZKBulkClient.Result<List<String>>> children = byPath(bulk.getChildrenAll(childrenPaths));
+            dataFetches += dataPaths.size();
+            childrenFetches += childrenPaths.size();
+
+            List<String> next = new ArrayList<String>();
+            for (String path : level) {
+                Node old = base.get(path);
+                Stat stat = stats.get(path);
+                ZKBulkClient.Result<byte[]> d = data.get(path);
+                ZKBulkClient.Result<List<String>> c = children.get(path);
+                //获取过程中节点被删除
+                if ((d != null && !ok(d)) || (c != null && !ok(c)) || (d == null && stat == null)) {
+                    continue;
+                }
+                Stat dataStat = d != null ? d.getStat() : stat;
+                Stat childrenStat = c != null ? c.getStat() : stat;
+                ByteBuffer bytes = d != null ? ByteBuffer.wrap(d.get() == null ? new byte[0] : d.get())
+                        : old.data;
+                List<String> names = new ArrayList<String>(c != null ? c.get() : old.children);
+                Collections.sort(names);
+                result.put(path, new Node(path, dataStat.getCzxid(), dataStat.getMzxid(), childrenStat.getPzxid(),
+                        dataStat.getVersion(), childrenStat.getCversion(), bytes, names));
+                for (String name : names) {
+                    next.add(path.equals("/") ? "/" + name : path + "/" + name);
+                }
+            }
+            level = next;
+        }
+        return new ZKSnapshot(root, result, dataFetches, childrenFetches);
+    }
+
+    /**
+     * 判断结果是否成功，节点不存在返回false，其他错误抛出
+     */
+    private static boolean ok(ZKBulkClient.Result<?> result) throws KeeperException {
+        if (result.getCode() == KeeperException.Code.NONODE) {
+            return false;
+        }
+        result.get();
+        return true;
+    }
+
+    private static <T> Map<String, ZKBulkClient.Result<T>> byPath(Collection<ZKBulkClient.Result<T>> results) {
+        Map<String, ZKBulkClient.Result<T>> map = new HashMap<String, ZKBulkClient.Result<T>>(results.size() * 4 / 3 + 1);
+        for (ZKBulkClient.Result<T> result : results) {
+            map.put(result.getPath(), result);
+        }
+        return map;
+    }
+
+    private static String parentOf(String path) {
+        int index = path.lastIndexOf('/');
+        return index == 0 ? "/" : path.substring(0, index);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * 所有节点，按层序排列
+     */
+    public Map<String, Node> getNodes() {
+        return nodes;
+    }
+
+    public Node getNode(String path) {
+        return nodes.get(path);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * 生成快照时获取数据的节点数，加载的快照为0
+     */
+    public int getDataFetches() {
+        return dataFetches;
+    }
+
+    /**
+     * 生成快照时获取子节点的节点数，加载的快照为0
+     */
+    public int getChildrenFetches() {
+        return childrenFetches;
+    }
+
+    /**
+     * 快照中的节点
+     */
+    public static class Node {
+        private final String path;
+        private final long czxid;
+        private final long mzxid;
+        private final long pzxid;
+        private final int version;
+        private final int cversion;
+        /**
+         * 节点数据，加载的快照中引用文件映射区
+         */
+        private final ByteBuffer data;
+        private final List<String> children;
+
+        Node(String path, long czxid, long mzxid, long pzxid, int version, int cversion, ByteBuffer data,
+             List<String> children) {
+            this.path = path;
+            this.czxid = czxid;
+            this.mzxid = mzxid;
+            this.pzxid = pzxid;
+            this.version = version;
+            this.cversion = cversion;
+            this.data = data;
+            this.children = children;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getCzxid() {
+            return czxid;
+        }
+
+        public long getMzxid() {
+            return mzxid;
+        }
+
+        public long getPzxid() {
+            return pzxid;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public int getCversion() {
+            return cversion;
+        }
+
+        /**
+         * 节点数据的拷贝
+         */
+        public byte[] getData() {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            return bytes;
+        }
+
+        /**
+         * 子节点名称，按名称排序
+         */
+        public List<String> getChildren() {
+            return Collections.unmodifiableList(children);
+        }
+    }
+
+    /**
+     * 命令行工具
+     * export 根路径 文件：导出子树；sync 文件：加载快照并与zk对齐后写回
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !(args[0].equals("export") && args.length == 3 || args[0].equals("sync"))) {
+            System.out.println("usage: ZKSnapshot export <root> <file> | ZKSnapshot sync <file>");
+            return;
+        }
+        ZooKeeper zk = new ZooKeeper(ZookeeperDemo.ADDRESS, 5000, null);
+        try {
+            long begin = System.currentTimeMillis();
+            if (args[0].equals("export")) {
+                ZKSnapshot snapshot = export(zk, args[1], new File(args[2]));
+                log("export: " + snapshot.size() + " nodes cost: " + (System.currentTimeMillis() - begin) + "ms");
+            } else {
+                File file = new File(args[1]);
+                ZKSnapshot loaded = load(file);
+                log("load: " + loaded.size() + " nodes cost: " + (System.currentTimeMillis() - begin) + "ms");
+                begin = System.currentTimeMillis();
+                ZKSnapshot synced = loaded.sync(zk);
+                synced.save(file);
+                log("sync: " + synced.size() + " nodes, data fetched: " + synced.getDataFetches()
+                        + ", children fetched: " + synced.getChildrenFetches() + " cost: "
+                        + (System.currentTimeMillis() - begin) + "ms");
+            }
+        } finally {
+            zk.close();
+        }
+    }
+}
@@ -5,8 +5,15 @@ import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class ZookeeperDemo {
     public static final String ADDRESS = "127.0.0.1:2182";
@@ -99,20 +106,30 @@ public class ZookeeperDemo {
             //创建连接（带监听）
             client = new ZooKeeper(ADDRESS, SESSION_TIMEOUT, null);
             client.create("/test", "test".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-            //通过getData操作添加监听
-            //getData的监听只能通过delete和setData触发
-            //同时这个监听只能触发一次。如果有两次delete/setData 第二次的操作就不会触发。
-            byte[] data = client.getData("/test", new Watcher() {
+            //通过监听复用添加数据监听，数据变化和删除时触发
+            //zk的监听只能触发一次，由WatchRegistry在触发后自动续订，两次setData和delete都会通知
+            WatchRegistry registry = new WatchRegistry(client);
+            registry.addListener("/test", WatchRegistry.Type.DATA, new Watcher() {
                 @Override
                 public void process(WatchedEvent watchedEvent) {
                     log(" path:" + watchedEvent.getPath() + " type: " + watchedEvent.getType());
 
                 }
-            }, null);
-            log("data: " + new String(data));
+            });
+            log("data: " + new String(client.getData("/test", false, null)));
+            //注册是异步的，等注册完成再修改
+            Thread.sleep(500);
 
+            log("update data...");
+            client.setData("/test", "abc".getBytes(), -1);
+            Thread.sleep(500);
+            log("update data...");
+            client.setData("/test", "def".getBytes(), -1);
+            Thread.sleep(500);
             log("delete...");
             client.delete("/test", -1);
+            Thread.sleep(500);
+            registry.close();
         } catch (IOException e) {
             e.printStackTrace();
         } catch (InterruptedException e) {
@@ -167,7 +184,323 @@ public class ZookeeperDemo {
         }
     }
 
-    public static void main(String[] args) {
+    /**
+     * 批量操作
+     * 逐个create需要等待每一次往返，批量操作把请求连续发出，只受在途请求上限约束
+     */
+    public static void testBulkAPI() {
+        ZooKeeper client = null;
+        try {
+            client = new ZooKeeper(ADDRESS, SESSION_TIMEOUT, null);
+            ZKBulkClient bulk = new ZKBulkClient(client);
+            int count = 10000;
+            //父节点排在子节点之前，同一会话按顺序处理
+            Map<String, byte[]> nodes = new LinkedHashMap<String, byte[]>();
+            nodes.put("/bulk", new byte[0]);
+            for (int i = 0; i < count; i++) {
+                nodes.put("/bulk/config_" + i, ("value" + i).getBytes());
+            }
+            long begin = System.currentTimeMillis();
+            List<ZKBulkClient.Result<String>> created = bulk.createAll(nodes, CreateMode.PERSISTENT);
+            log("createAll: " + created.size() + " cost: " + (System.currentTimeMillis() - begin) + "ms");
+
+            begin = System.currentTimeMillis();
+            List<ZKBulkClient.Result<byte[]>> data = bulk.getAll(nodes.keySet());
+            log("getAll: " + data.size() + " cost: " + (System.currentTimeMillis() - begin) + "ms last: "
+                    + new String(data.get(count).get()));
+
+            //对比逐个读取
+            begin = System.currentTimeMillis();
+            for (String path : nodes.keySet()) {
+                client.getData(path, null, null);
+            }
+            log("getData one by one: " + nodes.size() + " cost: " + (System.currentTimeMillis() - begin) + "ms");
+
+            for (String path : nodes.keySet()) {
+                nodes.put(path, "updated".getBytes());
+            }
+            begin = System.currentTimeMillis();
+            List<ZKBulkClient.Result<Stat>> updated = bulk.setAll(nodes);
+            log("setAll: " + updated.size() + " cost: " + (System.currentTimeMillis() - begin) + "ms version: "
+                    + updated.get(count).get().getVersion());
+
+            //子节点排在父节点之前
+            List<String> paths = new ArrayList<String>(nodes.keySet());
+            Collections.reverse(paths);
+            begin = System.currentTimeMillis();
+            List<ZKBulkClient.Result<Void>> deleted = bulk.deleteAll(paths);
+            log("deleteAll: " + deleted.size() + " cost: " + (System.currentTimeMillis() - begin) + "ms last: "
+                    + deleted.get(count));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (KeeperException e) {
+            e.printStackTrace();
+        } finally {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 监听复用
+     * 多个监听者挂在同一个路径上，zk中只注册一个监听，触发后自动续订，续订次数与监听者数量无关
+     */
+    public static void testWatchRegistry() {
+        ZooKeeper client = null;
+        try {
+            client = new ZooKeeper(ADDRESS, SESSION_TIMEOUT, null);
+            client.create("/test", "test".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            WatchRegistry registry = new WatchRegistry(client);
+            for (int i = 0; i < 10; i++) {
+                final int n = i;
+                registry.addListener("/test", WatchRegistry.Type.DATA, new Watcher() {
+                    @Override
+                    public void process(WatchedEvent watchedEvent) {
+                        log("listener" + n + " path:" + watchedEvent.getPath() + " type: " + watchedEvent.getType());
+                    }
+                });
+            }
+            registry.addListener("/test", WatchRegistry.Type.CHILDREN, new Watcher() {
+                @Override
+                public void process(WatchedEvent watchedEvent) {
+                    log("children path:" + watchedEvent.getPath() + " type: " + watchedEvent.getType());
+                }
+            });
+            Thread.sleep(500);
+            //不需要重新注册，每次修改都会通知
+            for (int i = 0; i < 3; i++) {
+                client.setData("/test", ("data" + i).getBytes(), -1);
+                Thread.sleep(500);
+            }
+            client.create("/test/child", "child".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            Thread.sleep(500);
+            client.delete("/test/child", -1);
+            client.delete("/test", -1);
+            Thread.sleep(500);
+            log("watches: " + registry.getWatchCount() + " events: " + registry.getEvents() + " registrations: "
+                    + registry.getRegistrations());
+            registry.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (KeeperException e) {
+            e.printStackTrace();
+        } finally {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 合并写入
+     * 多个状态节点高频覆盖写，一个窗口内同一节点只提交最后一次，不同节点在一个事务中提交
+     */
+    public static void testBatchWriter() {
+        ZooKeeper client = null;
+        try {
+            client = new ZooKeeper(ADDRESS, SESSION_TIMEOUT, null);
+            client.create("/status", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            for (int i = 0; i < 5; i++) {
+                client.create("/status/worker" + i, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+            ZKBatchWriter writer = new ZKBatchWriter(client, 50);
+            long begin = System.currentTimeMillis();
+            CompletableFuture<Stat> last = null;
+            for (int n = 0; n < 1000; n++) {
+                last = writer.write("/status/worker" + n % 5, ("heartbeat" + n).getBytes());
+                if (n % 50 == 0) {
+                    Thread.sleep(10);
+                }
+            }
+            log("last version: " + last.get().getVersion() + " cost: " + (System.currentTimeMillis() - begin) + "ms");
+            //版本不符的写入单独失败，不影响同一事务中的其他写入
+            CompletableFuture<Stat> conflict = writer.write("/status/worker0", "stale".getBytes(), 0);
+            CompletableFuture<Stat> other = writer.write("/status/worker1", "fresh".getBytes());
+            writer.flush();
+            log("other version: " + other.get().getVersion() + " conflict failed: "
+                    + conflict.isCompletedExceptionally());
+            log("writes: " + writer.getWrites() + " coalesced: " + writer.getCoalesced() + " commits: "
+                    + writer.getCommits());
+            writer.close();
+            for (int i = 0; i < 5; i++) {
+                log("worker" + i + ": " + new String(client.getData("/status/worker" + i, null, null)));
+                client.delete("/status/worker" + i, -1);
+            }
+            client.delete("/status", -1);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (KeeperException e) {
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 节点数据编解码
+     * 大的配置超过阈值后压缩写入，小的数据只加头，原来直接写入的数据照常读取
+     */
+    public static void testPayloadCodec() {
+        ZooKeeper client = null;
+        try {
+            client = new ZooKeeper(ADDRESS, SESSION_TIMEOUT, null);
+            PayloadCodec codec = new PayloadCodec(1024);
+            //自定义序列化方式：配置项按行保存
+            PayloadCodec.Serializer<Map<String, String>> config = new PayloadCodec.Serializer<Map<String, String>>() {
+                @Override
+                public int id() {
+                    return 16;
+                }
+
+                @Override
+                public byte[] serialize(Map<String, String> value) {
+                    StringBuilder builder = new StringBuilder();
+                    for (Map.Entry<String, String> entry : value.entrySet()) {
+                        builder.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+                    }
+                    return PayloadCodec.STRING.serialize(builder.toString());
+                }
+
+                @Override
+                public Map<String, String> deserialize(byte[] buf, int offset, int length) {
+                    Map<String, String> value = new LinkedHashMap<String, String>();
+                    for (String line : PayloadCodec.STRING.deserialize(buf, offset, length).split("\n")) {
+                        int split = line.indexOf('=');
+                        if (split > 0) {
+                            value.put(line.substring(0, split), line.substring(split + 1));
+                        }
+                    }
+                    return value;
+                }
+            };
+            Map<String, String> services = new LinkedHashMap<String, String>();
+            for (int i = 0; i < 5000; i++) {
+                services.put("service" + i + ".address", "10.0." + i / 256 + "." + i % 256 + ":8080");
+                services.put("service" + i + ".timeout", String.valueOf(1000 + i % 10 * 500));
+            }
+            int rawSize = config.serialize(services).length;
+            client.create("/config", codec.encode(services, config), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            Stat stat = new Stat();
+            Map<String, String> read = PayloadCodec.decode(client.getData("/config", false, stat), config);
+            log("config raw: " + rawSize + " stored: " + stat.getDataLength() + " entries: " + read.size()
+                    + " equal: " + read.equals(services));
+
+            //小于阈值只加头
+            client.create("/config/name", codec.encode("demo"), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            byte[] small = client.getData("/config/name", false, null);
+            log("name: " + PayloadCodec.decodeString(small) + " stored: " + small.length);
+
+            //没有头的旧数据按原始字节读取
+            client.create("/config/legacy", "legacy".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            log("legacy: " + PayloadCodec.decodeString(client.getData("/config/legacy", false, null)));
+
+            client.delete("/config/name", -1);
+            client.delete("/config/legacy", -1);
+            client.delete("/config", -1);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (KeeperException e) {
+            e.printStackTrace();
+        } finally {
+            if (client != null) {
+                try {
+                    client.close();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 读穿透缓存
+     * 热点配置反复读取只访问一次zk，其他会话修改后监听使缓存失效，sync读取立即读到刚提交的修改
+     */
+    public static void testDataCache() {
+        ZooKeeper client = null;
+        ZooKeeper writer = null;
+        try {
+            client = new ZooKeeper(ADDRESS, 5000, null);
+            writer = new ZooKeeper(ADDRESS, 5000, null);
+            client.create("/cache", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            client.create("/cache/hot", "v1".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            ZKDataCache cache = new ZKDataCache(client, 16 * 1024);
+            long begin = System.currentTimeMillis();
+            for (int i = 0; i < 100000; i++) {
+                cache.getData("/cache/hot", null);
+            }
+            log("100000 reads cost: " + (System.currentTimeMillis() - begin) + "ms hits: " + cache.getHits()
+                    + " misses: " + cache.getMisses());
+
+            //另一个会话修改，sync读取一定读到新值
+            writer.setData("/cache/hot", "v2".getBytes(), -1);
+            Stat stat = new Stat();
+            log("sync read: " + new String(cache.getData("/cache/hot", stat, true)) + " version: "
+                    + stat.getVersion() + " invalidations: " + cache.getInvalidations());
+
+            //超过字节上限时淘汰最久未访问的项
+            byte[] data = new byte[1024];
+            for (int i = 0; i < 32; i++) {
+                client.create("/cache/node" + i, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                cache.getData("/cache/node" + i, null);
+                cache.getData("/cache/hot", null);
+            }
+            log("size: " + cache.size() + " bytes: " + cache.getBytes() + " evictions: " + cache.getEvictions()
+                    + " hot cached: " + (cache.getMisses() == 2 + 32));
+
+            for (int i = 0; i < 32; i++) {
+                client.delete("/cache/node" + i, -1);
+            }
+            client.delete("/cache/hot", -1);
+            client.delete("/cache", -1);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (KeeperException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (client != null) {
+                    client.close();
+                }
+                if (writer != null) {
+                    writer.close();
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 不带参数时运行示例，load开头时运行压测，如 load --embedded --async --concurrency 64 --mix get:80,set:20
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("load")) {
+            ZKLoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
 //        testBaseAPI();
 //        testDeleteClose();
         testWathcer();
@@ -0,0 +1,284 @@
+package demo.curator;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 限制在途数量的后台操作执行器
+ * inBackground的操作没有上限，突发的大量请求会同时堆在客户端的发送队列和服务端的请求队列中，延迟越来越高，甚至拖到会话超时。
+ * 一个会话使用一个执行器，同时在途（已发出、未回调）的操作不超过上限，其余按调用方排队，
+ * 各调用方的队列轮流发出，一个调用方的突发不会饿死其他调用方。
+ * 调用方的队列满时，{@link #submit}阻塞等待，{@link #trySubmit}超时后拒绝，把压力传回调用方。
+ * 名额只在回调中释放，而回调在zk的事件线程中执行，在事件线程中等待会造成死锁：
+ * 在回调或监听中提交时不等待，队列满时{@link #submit}抛出RejectedExecutionException，{@link #trySubmit}直接返回false
+ */
+public class BackgroundOperationExecutor {
+    /**
+     * 一个后台操作
+     */
+    public interface Operation {
+        /**
+         * 发出操作，必须把callback传给inBackground
+         */
+        void execute(BackgroundCallback callback) throws Exception;
+    }
+
+    private final int maxInFlight;
+    private final int maxQueued;
+    /**
+     * 调用方 -> 排队的操作，所有状态在this上加锁
+     */
+    private final Map<String, CallerQueue> queues = new HashMap<String, CallerQueue>();
+    /**
+     * 有操作排队的调用方，按轮转顺序
+     */
+    private final ArrayDeque<CallerQueue> ready = new ArrayDeque<CallerQueue>();
+    private int inFlight;
+    private int queued;
+    private int maxObserved;
+    private long completed;
+    private long rejected;
+    private long failed;
+
+    /**
+     * @param maxInFlight 同时在途的操作上限
+     * @param maxQueued   每个调用方排队的操作上限
+     */
+    public BackgroundOperationExecutor(int maxInFlight, int maxQueued) {
+        if (maxInFlight <= 0 || maxQueued < 0) {
+            throw new IllegalArgumentException("maxInFlight:" + maxInFlight + " maxQueued:" + maxQueued);
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * 提交操作，调用方的队列满时阻塞
+     *
+     * @param caller    调用方，按调用方轮流发出
+     * @param operation 后台操作
+     * @param callback  操作完成的回调，在curator的事件线程中执行
+     * @throws RejectedExecutionException 在zk的事件线程中提交且调用方的队列已满
+     */
+    public void submit(String caller, Operation operation, BackgroundCallback callback) throws InterruptedException {
+        Task task = new Task(operation, callback);
+        boolean eventThread = isEventThread();
+        synchronized (this) {
+            while (!accept(caller, task)) {
+                if (eventThread) {
+                    rejected++;
+                    throw new RejectedExecutionException("queue full on zk event thread: " + caller);
+                }
+                wait();
+            }
+        }
+        start(task);
+    }
+
+    /**
+     * 提交操作，调用方的队列满时最多等待timeout
+     *
+     * @return 超时仍未能排队时返回false，操作不会执行；在zk的事件线程中提交时不等待
+     */
+    public boolean trySubmit(String caller, Operation operation, BackgroundCallback callback, long timeout,
+                             TimeUnit unit) throws InterruptedException {
+        Task task = new Task(operation, callback);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean eventThread = isEventThread();
+        synchronized (this) {
+            while (!accept(caller, task)) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || eventThread) {
+                    rejected++;
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        start(task);
+        return true;
+    }
+
+    /**
+     * 等待所有在途和排队的操作完成
+     *
+     * @return 超时返回false
+     */
+    public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (inFlight > 0 || queued > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    /**
+     * 观察到的最大在途数
+     */
+    public synchronized int getMaxObserved() {
+        return maxObserved;
+    }
+
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * 被拒绝的提交数
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * 发出时抛出异常的操作数
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * 当前线程是否是zk客户端的事件线程，回调和监听都在其中执行
+     */
+    private static boolean isEventThread() {
+        return Thread.currentThread().getName().endsWith("-EventThread");
+    }
+
+    /**
+     * 有空余且没有其他操作排队时直接占用在途名额（返回true且task.started），否则进入调用方的队列
+     *
+     * @return 队列已满时返回false
+     */
+    private boolean accept(String caller, Task task) {
+        if (inFlight < maxInFlight && ready.isEmpty()) {
+            acquire();
+            task.started = true;
+            return true;
+        }
+        CallerQueue queue = queues.get(caller);
+        if (queue == null) {
+            queue = new CallerQueue(caller);
+            queues.put(caller, queue);
+        }
+        if (queue.tasks.size() >= maxQueued) {
+            if (queue.tasks.isEmpty()) {
+                queues.remove(caller);
+            }
+            return false;
+        }
+        if (queue.tasks.isEmpty()) {
+            ready.addLast(queue);
+        }
+        queue.tasks.addLast(task);
+        queued++;
+        return true;
+    }
+
+    private void acquire() {
+        inFlight++;
+        if (inFlight > maxObserved) {
+            maxObserved = inFlight;
+        }
+    }
+
+    /**
+     * 发出已占用名额的操作，排队中的操作由完成的操作发出
+     */
+    private void start(Task task) {
+        if (!task.started) {
+            return;
+        }
+        try {
+            task.operation.execute(task);
+        } catch (Exception e) {
+            e.printStackTrace();
+            synchronized (this) {
+                failed++;
+            }
+            release();
+        }
+    }
+
+    /**
+     * 释放一个在途名额，按轮转顺序发出下一个排队的操作
+     */
+    private void release() {
+        Task next = null;
+        synchronized (this) {
+            inFlight--;
+            CallerQueue queue = ready.pollFirst();
+            if (queue != null) {
+                next = queue.tasks.pollFirst();
+                queued--;
+                if (queue.tasks.isEmpty()) {
+                    queues.remove(queue.caller);
+                } else {
+                    ready.addLast(queue);
+                }
+                acquire();
+                next.started = true;
+            }
+            notifyAll();
+        }
+        if (next != null) {
+            start(next);
+        }
+    }
+
+    /**
+     * 一个调用方排队的操作
+     */
+    private static class CallerQueue {
+        final String caller;
+        final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+
+        CallerQueue(String caller) {
+            this.caller = caller;
+        }
+    }
+
+    /**
+     * 一个操作，同时作为传给inBackground的回调，完成时释放名额
+     */
+    private class Task implements BackgroundCallback {
+        final Operation operation;
+        final BackgroundCallback callback;
+        boolean started;
+
+        Task(Operation operation, BackgroundCallback callback) {
+            this.operation = operation;
+            this.callback = callback;
+        }
+
+        @Override
+        public void processResult(CuratorFramework client, CuratorEvent event) throws Exception {
+            synchronized (BackgroundOperationExecutor.this) {
+                completed++;
+            }
+            //先发出下一个操作，回调耗时不影响在途数量
+            release();
+            if (callback != null) {
+                callback.processResult(client, event);
+            }
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package demo.curator;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionBridge;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 自动分段的事务
+ * 任意数量的create/setData/delete/check操作按顺序放进尽量少的multi事务中提交，
+ * 按jute序列化格式估算每个操作的大小，保证每次请求不超过jute.maxbuffer，否则服务端会直接断开连接。
+ * 每一段是一个原子事务，段与段之间不是原子的：某一段失败时，之前的段已经提交，该段整体回滚，之后的段不再执行，
+ * 提交结果中给出每个操作的状态和已提交部分的边界。
+ * 连接断开、会话过期等没有逐个结果的异常时，无法知道该段是否已在服务端生效，该段的操作标记为{@link Status#UNKNOWN}，需由调用方确认
+ */
+public class ChunkedTransaction {
+    /**
+     * jute.maxbuffer的默认值
+     */
+    private static final int DEFAULT_MAX_BUFFER = 0xfffff;
+    /**
+     * 请求头等固定开销的预留
+     */
+    private static final int HEADROOM = 1024;
+
+    /**
+     * 操作类型
+     */
+    public enum Type {
+        CREATE, SET_DATA, DELETE, CHECK
+    }
+
+    /**
+     * 操作状态
+     */
+    public enum Status {
+        /**
+         * 已提交
+         */
+        COMMITTED,
+        /**
+         * 导致所在段失败的操作
+         */
+        FAILED,
+        /**
+         * 所在段失败，随之回滚
+         */
+        ROLLED_BACK,
+        /**
+         * 之前的段失败，未执行
+         */
+        NOT_RUN,
+        /**
+         * 所在段提交时连接异常，没有逐个结果，该段可能已整体生效也可能整体未生效
+         */
+        UNKNOWN
+    }
+
+    private final CuratorFramework client;
+    private final int maxBytes;
+    private final List<Operation> operations = new ArrayList<Operation>();
+
+    public ChunkedTransaction(CuratorFramework client) {
+        this(client, Integer.getInteger("jute.maxbuffer", DEFAULT_MAX_BUFFER) - HEADROOM);
+    }
+
+    /**
+     * @param client   curator 客户端
+     * @param maxBytes 每段事务请求的最大字节数
+     */
+    public ChunkedTransaction(CuratorFramework client, int maxBytes) {
+        this.client = client;
+        this.maxBytes = maxBytes;
+    }
+
+    public ChunkedTransaction create(String path, byte[] data) {
+        return create(path, data, CreateMode.PERSISTENT);
+    }
+
+    public ChunkedTransaction create(String path, byte[] data, CreateMode mode) {
+        operations.add(new Operation(Type.CREATE, path, data, -1, mode));
+        return this;
+    }
+
+    public ChunkedTransaction setData(String path, byte[] data) {
+        return setData(path, data, -1);
+    }
+
+    public ChunkedTransaction setData(String path, byte[] data, int version) {
+        operations.add(new Operation(Type.SET_DATA, path, data, version, null));
+        return this;
+    }
+
+    public ChunkedTransaction delete(String path) {
+        return delete(path, -1);
+    }
+
+    public ChunkedTransaction delete(String path, int version) {
+        operations.add(new Operation(Type.DELETE, path, null, version, null));
+        return this;
+    }
+
+    public ChunkedTransaction check(String path, int version) {
+        operations.add(new Operation(Type.CHECK, path, null, version, null));
+        return this;
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    /**
+     * 分段提交
+     *
+     * @return 每个操作的结果，提交到第一个失败的段为止
+     */
+    public Report commit() throws Exception {
+        List<List<Operation>> chunks = split();
+        List<Outcome> outcomes = new ArrayList<Outcome>(operations.size());
+        List<Integer> chunkStarts = new ArrayList<Integer>(chunks.size());
+        int failedIndex = -1;
+        int committed = 0;
+        for (List<Operation> chunk : chunks) {
+            int start = outcomes.size();
+            chunkStarts.add(start);
+            if (failedIndex >= 0) {
+                for (Operation op : chunk) {
+                    outcomes.add(new Outcome(outcomes.size(), op, Status.NOT_RUN, null, null, null));
+                }
+                continue;
+            }
+            try {
+                Iterator<CuratorTransactionResult> results = commit(chunk).iterator();
+                for (Operation op : chunk) {
+                    CuratorTransactionResult result = results.next();
+                    outcomes.add(new Outcome(outcomes.size(), op, Status.COMMITTED, KeeperException.Code.OK,
+                            result.getResultPath(), result.getResultStat()));
+                }
+                committed = outcomes.size();
+            } catch (KeeperException e) {
+                List<OpResult> results = e.getResults();
+                if (results == null) {
+                    //连接异常时没有逐个结果，请求可能已在服务端生效，整段标记为未知，由调用方确认
+                    failedIndex = start;
+                    for (int i = 0; i < chunk.size(); i++) {
+                        outcomes.add(new Outcome(start + i, chunk.get(i), Status.UNKNOWN, e.code(), null, null));
+                    }
+                    continue;
+                }
+                for (int i = 0; i < chunk.size(); i++) {
+                    KeeperException.Code code = KeeperException.Code.get(((OpResult.ErrorResult) results.get(i)).getErr());
+                    boolean cause = code != KeeperException.Code.OK && code != KeeperException.Code.RUNTIMEINCONSISTENCY;
+                    if (cause && failedIndex < 0) {
+                        failedIndex = start + i;
+                    }
+                    outcomes.add(new Outcome(start + i, chunk.get(i), cause ? Status.FAILED : Status.ROLLED_BACK,
+                            code, null, null));
+                }
+                if (failedIndex < 0) {
+                    failedIndex = start;
+                }
+            }
+        }
+        return new Report(outcomes, chunkStarts, committed, failedIndex);
+    }
+
+    /**
+     * 按估算大小顺序分段
+     */
+    private List<List<Operation>> split() {
+        String namespace = client.getNamespace();
+        int prefix = namespace == null || namespace.isEmpty() ? 0 : namespace.length() + 1;
+        List<List<Operation>> chunks = new ArrayList<List<Operation>>();
+        List<Operation> chunk = new ArrayList<Operation>();
+        int bytes = 0;
+        for (Operation op : operations) {
+            int size = op.estimateSize(prefix);
+            if (size > maxBytes) {
+                throw new IllegalArgumentException("operation too large: " + op.path + " " + size + " bytes");
+            }
+            if (bytes + size > maxBytes && !chunk.isEmpty()) {
+                chunks.add(chunk);
+                chunk = new ArrayList<Operation>();
+                bytes = 0;
+            }
+            chunk.add(op);
+            bytes += size;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private List<CuratorTransactionResult> commit(List<Operation> chunk) throws Exception {
+        CuratorTransaction transaction = client.inTransaction();
+        for (Operation op : chunk) {
+            CuratorTransactionBridge bridge;
+            switch (op.type) {
+                case CREATE:
+                    bridge = transaction.create().withMode(op.mode).withACL(ZooDefs.Ids.OPEN_ACL_UNSAFE)
+                            .forPath(op.path, op.data);
+                    break;
+                case SET_DATA:
+                    bridge = transaction.setData().withVersion(op.version).forPath(op.path, op.data);
+                    break;
+                case DELETE:
+                    bridge = transaction.delete().withVersion(op.version).forPath(op.path);
+                    break;
+                default:
+                    bridge = transaction.check().withVersion(op.version).forPath(op.path);
+                    break;
+            }
+            transaction = bridge.and();
+        }
+        return new ArrayList<CuratorTransactionResult>(((CuratorTransactionFinal) transaction).commit());
+    }
+
+    /**
+     * 一个操作
+     */
+    private static class Operation {
+        final Type type;
+        final String path;
+        final byte[] data;
+        final int version;
+        final CreateMode mode;
+
+        Operation(Type type, String path, byte[] data, int version, CreateMode mode) {
+            this.type = type;
+            this.path = path;
+            this.data = data == null ? null : data.clone();
+            this.version = version;
+            this.mode = mode;
+        }
+
+        /**
+         * 估算jute序列化后的字节数：multi头（类型、结束标记、错误码）加上各请求的字段
+         *
+         * @param prefix 命名空间带来的路径前缀长度
+         */
+        int estimateSize(int prefix) {
+            int size = 4 + 1 + 4;
+            size += 4 + prefix + path.getBytes(StandardCharsets.UTF_8).length;
+            //数据为空时jute只写入长度-1
+            int dataLength = data == null ? 0 : data.length;
+            switch (type) {
+                case CREATE:
+                    size += 4 + dataLength + 4 + 4;
+                    for (ACL acl : ZooDefs.Ids.OPEN_ACL_UNSAFE) {
+                        size += 4 + 4 + acl.getId().getScheme().length() + 4 + acl.getId().getId().length();
+                    }
+                    break;
+                case SET_DATA:
+                    size += 4 + dataLength + 4;
+                    break;
+                default:
+                    size += 4;
+                    break;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * 单个操作的结果
+     */
+    public static class Outcome {
+        private final int index;
+        private final Type type;
+        private final String path;
+        private final Status status;
+        private final KeeperException.Code code;
+        private final String resultPath;
+        private final Stat stat;
+
+        Outcome(int index, Operation op, Status status, KeeperException.Code code, String resultPath, Stat stat) {
+            this.index = index;
+            this.type = op.type;
+            this.path = op.path;
+            this.status = status;
+            this.code = code;
+            this.resultPath = resultPath;
+            this.stat = stat;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * 错误码，未执行时为空
+         */
+        public KeeperException.Code getCode() {
+            return code;
+        }
+
+        /**
+         * create实际创建的路径
+         */
+        public String getResultPath() {
+            return resultPath;
+        }
+
+        /**
+         * setData后的状态
+         */
+        public Stat getStat() {
+            return stat;
+        }
+
+        @Override
+        public String toString() {
+            return index + " " + type + " " + path + " " + status + (code == null ? "" : " " + code);
+        }
+    }
+
+    /**
+     * 提交结果
+     */
+    public static class Report {
+        private final List<Outcome> outcomes;
+        private final List<Integer> chunkStarts;
+        private final int committed;
+        private final int failedIndex;
+
+        Report(List<Outcome> outcomes, List<Integer> chunkStarts, int committed, int failedIndex) {
+            this.outcomes = Collections.unmodifiableList(outcomes);
+            this.chunkStarts = Collections.unmodifiableList(chunkStarts);
+            this.committed = committed;
+            this.failedIndex = failedIndex;
+        }
+
+        public boolean isSuccess() {
+            return failedIndex < 0;
+        }
+
+        /**
+         * 每个操作的结果，与添加顺序一致
+         */
+        public List<Outcome> getOutcomes() {
+            return outcomes;
+        }
+
+        /**
+         * 每段第一个操作的序号
+         */
+        public List<Integer> getChunkStarts() {
+            return chunkStarts;
+        }
+
+        /**
+         * 已提交的操作数，序号小于它的操作都已提交。
+         * 其余操作中状态为{@link Status#UNKNOWN}的一段可能已生效，由调用方确认，之后的操作都未生效
+         */
+        public int getCommitted() {
+            return committed;
+        }
+
+        /**
+         * 导致失败的操作序号，结果未知时为该段第一个操作的序号，成功时为-1
+         */
+        public int getFailedIndex() {
+            return failedIndex;
+        }
+    }
+}
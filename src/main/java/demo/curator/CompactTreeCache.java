@@ -0,0 +1,443 @@
+package demo.curator;
+
+import com.google.common.base.Function;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.listen.Listenable;
+import org.apache.curator.framework.listen.ListenerContainer;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 内存紧凑的递归树缓存
+ * 与TreeCache一样缓存整棵子树并通过{@link TreeCacheListener}通知NODE_ADDED/NODE_UPDATED/NODE_REMOVED/INITIALIZED及连接状态事件，
+ * 但节点不再各自持有ChildData、路径字符串、Stat和byte[]：节点保存在{@link NodeTable}中，
+ * 路径按段共享前缀，Stat拆成基本类型列，名称和数据写入大块的{@link Slab}，百万节点的子树只有几十个数组对象。
+ * ChildData只在通知和查询时临时生成。
+ * 每个节点注册一个数据监听和一个子节点监听，所有节点共用同一个Watcher对象
+ */
+public class CompactTreeCache implements Closeable {
+    /**
+     * 重连后重新对齐时同时在途的请求上限，避免大树一次发出几百万个请求
+     */
+    private static final int RESYNC_WINDOW = 1000;
+    /**
+     * 重新对齐请求的上下文，回调时归还在途名额
+     */
+    private static final Object RESYNC = new Object();
+
+    private final CuratorFramework client;
+    private final String root;
+    /**
+     * 是否缓存节点数据
+     */
+    private final boolean cacheData;
+    /**
+     * 节点树，所有读写都在该对象上加锁
+     */
+    private final NodeTable table = new NodeTable();
+    private final ListenerContainer<TreeCacheListener> listeners = new ListenerContainer<TreeCacheListener>();
+    /**
+     * 未返回的后台请求数，第一次降到0时通知INITIALIZED
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicBoolean initialized = new AtomicBoolean();
+    private final Semaphore resyncPermits = new Semaphore(RESYNC_WINDOW);
+    private volatile boolean closed;
+
+    private final Watcher watcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent watchedEvent) {
+            if (closed || watchedEvent.getPath() == null) {
+                return;
+            }
+            switch (watchedEvent.getType()) {
+                case NodeCreated:
+                case NodeDataChanged:
+                case NodeDeleted:
+                    refreshData(watchedEvent.getPath());
+                    break;
+                case NodeChildrenChanged:
+                    refreshChildren(watchedEvent.getPath());
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    private final BackgroundCallback callback = new BackgroundCallback() {
+        @Override
+        public void processResult(CuratorFramework curatorFramework, CuratorEvent curatorEvent) throws Exception {
+            try {
+                if (!closed) {
+                    switch (curatorEvent.getType()) {
+                        case GET_DATA:
+                            processData(curatorEvent);
+                            break;
+                        case CHILDREN:
+                            processChildren(curatorEvent);
+                            break;
+                        case EXISTS:
+                            //根节点出现后开始获取
+                            if (curatorEvent.getResultCode() == KeeperException.Code.OK.intValue()) {
+                                refreshData(curatorEvent.getPath());
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } finally {
+                if (curatorEvent.getContext() == RESYNC) {
+                    resyncPermits.release();
+                }
+                if (outstanding.decrementAndGet() == 0 && initialized.compareAndSet(false, true)) {
+                    publish(new TreeCacheEvent(TreeCacheEvent.Type.INITIALIZED, null));
+                }
+            }
+        }
+    };
+
+    private final ConnectionStateListener connectionStateListener = new ConnectionStateListener() {
+        @Override
+        public void stateChanged(CuratorFramework curatorFramework, ConnectionState connectionState) {
+            switch (connectionState) {
+                case SUSPENDED:
+                    publish(new TreeCacheEvent(TreeCacheEvent.Type.CONNECTION_SUSPENDED, null));
+                    break;
+                case LOST:
+                    publish(new TreeCacheEvent(TreeCacheEvent.Type.CONNECTION_LOST, null));
+                    break;
+                case RECONNECTED:
+                    //断线期间可能错过变化，整棵树重新对齐
+                    refreshAll();
+                    publish(new TreeCacheEvent(TreeCacheEvent.Type.CONNECTION_RECONNECTED, null));
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    /**
+     * @param client    curator 客户端
+     * @param root      子树根路径
+     * @param cacheData 是否缓存节点数据
+     */
+    public CompactTreeCache(CuratorFramework client, String root, boolean cacheData) {
+        this.client = client;
+        this.root = root;
+        this.cacheData = cacheData;
+    }
+
+    /**
+     * 开始缓存
+     */
+    public void start() {
+        client.getConnectionStateListenable().addListener(connectionStateListener);
+        refreshData(root);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        client.getConnectionStateListenable().removeListener(connectionStateListener);
+        listeners.clear();
+    }
+
+    public Listenable<TreeCacheListener> getListenable() {
+        return listeners;
+    }
+
+    /**
+     * 获取节点的当前数据，节点不在缓存中时返回空
+     */
+    public ChildData getCurrentData(String path) {
+        synchronized (table) {
+            int id = table.find(root, path);
+            return id == NodeTable.NO_NODE ? null : childData(id, path);
+        }
+    }
+
+    /**
+     * 获取节点的当前子节点，子节点名称 -> 数据，节点不在缓存中时返回空
+     */
+    public Map<String, ChildData> getCurrentChildren(String path) {
+        synchronized (table) {
+            int id = table.find(root, path);
+            if (id == NodeTable.NO_NODE) {
+                return null;
+            }
+            Map<String, ChildData> children = new LinkedHashMap<String, ChildData>();
+            for (int child = table.firstChild(id); child != NodeTable.NO_NODE; child = table.nextSibling(child)) {
+                String name = table.name(child);
+                children.put(name, childData(child, childPath(path, name)));
+            }
+            return children;
+        }
+    }
+
+    /**
+     * 缓存的节点数
+     */
+    public int size() {
+        synchronized (table) {
+            return table.size();
+        }
+    }
+
+    /**
+     * 名称和数据占用的字节数
+     */
+    public long getSlabBytes() {
+        synchronized (table) {
+            return table.slabBytes();
+        }
+    }
+
+    private void refreshData(String path) {
+        refreshData(path, null);
+    }
+
+    /**
+     * @param context 回调时带回的上下文，为{@link #RESYNC}时回调中归还在途名额
+     */
+    private void refreshData(String path, Object context) {
+        outstanding.incrementAndGet();
+        try {
+            client.getData().usingWatcher(watcher).inBackground(callback, context).forPath(path);
+        } catch (Exception e) {
+            failed(context);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 根节点不存在时用exists监听它的创建
+     */
+    private void watchRoot() {
+        outstanding.incrementAndGet();
+        try {
+            client.checkExists().usingWatcher(watcher).inBackground(callback).forPath(root);
+        } catch (Exception e) {
+            outstanding.decrementAndGet();
+            e.printStackTrace();
+        }
+    }
+
+    private void refreshChildren(String path) {
+        refreshChildren(path, null);
+    }
+
+    private void refreshChildren(String path, Object context) {
+        outstanding.incrementAndGet();
+        try {
+            client.getChildren().usingWatcher(watcher).inBackground(callback, context).forPath(path);
+        } catch (Exception e) {
+            failed(context);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 请求未能发出，撤销计数
+     */
+    private void failed(Object context) {
+        outstanding.decrementAndGet();
+        if (context == RESYNC) {
+            resyncPermits.release();
+        }
+    }
+
+    /**
+     * 重新获取所有节点的数据和子节点
+     * 同时在途的请求不超过RESYNC_WINDOW个，名额用完时在连接状态线程中等待回调归还；回调在zk事件线程中执行，不会互相等待
+     */
+    private void refreshAll() {
+        List<String> paths = new ArrayList<String>();
+        synchronized (table) {
+            collect(table.root(), paths);
+        }
+        if (paths.isEmpty()) {
+            refreshData(root);
+        }
+        try {
+            for (String path : paths) {
+                if (closed) {
+                    return;
+                }
+                resyncPermits.acquire(2);
+                refreshData(path, RESYNC);
+                refreshChildren(path, RESYNC);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void collect(int id, List<String> paths) {
+        if (id == NodeTable.NO_NODE) {
+            return;
+        }
+        paths.add(table.path(id));
+        for (int child = table.firstChild(id); child != NodeTable.NO_NODE; child = table.nextSibling(child)) {
+            collect(child, paths);
+        }
+    }
+
+    /**
+     * 处理getData的结果：新节点加入缓存并获取子节点，mzxid变化时更新，节点不存在时删除整棵子树
+     */
+    private void processData(CuratorEvent event) {
+        String path = event.getPath();
+        if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+            List<ChildData> removed = new ArrayList<ChildData>();
+            synchronized (table) {
+                int id = table.find(root, path);
+                if (id != NodeTable.NO_NODE) {
+                    removeSubtree(id, path, removed);
+                }
+            }
+            for (ChildData data : removed) {
+                publish(new TreeCacheEvent(TreeCacheEvent.Type.NODE_REMOVED, data));
+            }
+            if (path.equals(root)) {
+                watchRoot();
+            }
+            return;
+        }
+        if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+            return;
+        }
+        Stat stat = event.getStat();
+        byte[] data = cacheData ? (event.getData() == null ? new byte[0] : event.getData()) : null;
+        TreeCacheEvent.Type type = null;
+        synchronized (table) {
+            int id = table.find(root, path);
+            if (id == NodeTable.NO_NODE) {
+                int parentId = NodeTable.NO_NODE;
+                if (!path.equals(root)) {
+                    //父节点已被删除
+                    parentId = table.find(root, parentOf(path));
+                    if (parentId == NodeTable.NO_NODE) {
+                        return;
+                    }
+                }
+                byte[] name = (path.equals(root) ? path : path.substring(path.lastIndexOf('/') + 1))
+                        .getBytes(StandardCharsets.UTF_8);
+                id = table.add(parentId, name);
+                type = TreeCacheEvent.Type.NODE_ADDED;
+            } else if (table.mzxid(id) != stat.getMzxid()) {
+                type = TreeCacheEvent.Type.NODE_UPDATED;
+            }
+            table.setStat(id, stat);
+            if (type != null) {
+                table.setData(id, data);
+            }
+        }
+        if (type == TreeCacheEvent.Type.NODE_ADDED) {
+            refreshChildren(path);
+        }
+        if (type != null) {
+            publish(new TreeCacheEvent(type, new ChildData(path, stat, data)));
+        }
+    }
+
+    /**
+     * 处理getChildren的结果：获取新出现的子节点，移除已不存在的子节点
+     */
+    private void processChildren(CuratorEvent event) {
+        if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+            return;
+        }
+        String path = event.getPath();
+        Set<String> names = new HashSet<String>(event.getChildren());
+        List<ChildData> removed = new ArrayList<ChildData>();
+        synchronized (table) {
+            int id = table.find(root, path);
+            if (id == NodeTable.NO_NODE) {
+                return;
+            }
+            int child = table.firstChild(id);
+            while (child != NodeTable.NO_NODE) {
+                int next = table.nextSibling(child);
+                String name = table.name(child);
+                if (!names.remove(name)) {
+                    removeSubtree(child, childPath(path, name), removed);
+                }
+                child = next;
+            }
+        }
+        for (ChildData data : removed) {
+            publish(new TreeCacheEvent(TreeCacheEvent.Type.NODE_REMOVED, data));
+        }
+        for (String name : names) {
+            refreshData(childPath(path, name));
+        }
+    }
+
+    /**
+     * 从下往上删除子树，记录被删除的节点
+     */
+    private void removeSubtree(int id, String path, List<ChildData> removed) {
+        int child = table.firstChild(id);
+        while (child != NodeTable.NO_NODE) {
+            int next = table.nextSibling(child);
+            removeSubtree(child, childPath(path, table.name(child)), removed);
+            child = next;
+        }
+        removed.add(childData(id, path));
+        table.remove(id);
+    }
+
+    private ChildData childData(int id, String path) {
+        return new ChildData(path, table.stat(id), table.data(id));
+    }
+
+    private void publish(final TreeCacheEvent event) {
+        if (closed) {
+            return;
+        }
+        listeners.forEach(new Function<TreeCacheListener, Void>() {
+            @Override
+            public Void apply(TreeCacheListener listener) {
+                try {
+                    listener.childEvent(client, event);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                return null;
+            }
+        });
+    }
+
+    private static String childPath(String path, String name) {
+        return path.endsWith("/") ? path + name : path + "/" + name;
+    }
+
+    private static String parentOf(String path) {
+        int index = path.lastIndexOf('/');
+        return index == 0 ? "/" : path.substring(0, index);
+    }
+}
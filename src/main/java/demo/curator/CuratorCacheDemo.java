@@ -1,5 +1,6 @@
 package demo.curator;
 
+import demo.PayloadCodec;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.recipes.cache.*;
@@ -40,7 +41,7 @@ public class CuratorCacheDemo {
             public void nodeChanged() throws Exception {
                 ChildData currentData = nodeCache.getCurrentData();
                 System.out.println("path:" + currentData.getPath());
-                System.out.println("data:" + new String(currentData.getData()));
+                System.out.println("data:" + PayloadCodec.decodeString(currentData.getData()));
                 System.out.println("-----------");
             }
         };
@@ -81,7 +82,7 @@ public class CuratorCacheDemo {
                     throws Exception {
                 System.out.println("type: " + pathChildrenCacheEvent.getType());
                 System.out.println("path: " + pathChildrenCacheEvent.getData().getPath());
-                System.out.println("data: " + new String(pathChildrenCacheEvent.getData().getData()));
+                System.out.println("data: " + PayloadCodec.decodeString(pathChildrenCacheEvent.getData().getData()));
                 System.out.println("----------");
             }
         };
@@ -134,6 +135,87 @@ public class CuratorCacheDemo {
         work.close();
     }
 
+    private static TreeCacheListener getTreeCacheListener() {
+        return new TreeCacheListener() {
+            @Override
+            public void childEvent(CuratorFramework curatorFramework, TreeCacheEvent treeCacheEvent) throws Exception {
+                System.out.println("type: " + treeCacheEvent.getType());
+                if (treeCacheEvent.getData() != null) {
+                    System.out.println("path: " + treeCacheEvent.getData().getPath());
+                    System.out.println("data: " + PayloadCodec.decodeString(treeCacheEvent.getData().getData()));
+                }
+                System.out.println("----------");
+            }
+        };
+    }
+
+    public static void testCompactTreeCache() throws Exception {
+        CuratorFramework work = getWork();
+        String path = "/demo/demochild";
+        //构建递归树缓存，孙子节点的变化也会通知
+        CompactTreeCache cache = new CompactTreeCache(work, path, true);
+        cache.getListenable().addListener(getTreeCacheListener());
+        cache.start();
+
+        Thread.sleep(1000);
+        //创建子节点
+        work.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT).withACL(ZooDefs.Ids.OPEN_ACL_UNSAFE)
+                .forPath(path + "/a", "axi".getBytes());
+        Thread.sleep(1000);
+        //创建孙子节点
+        work.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT).withACL(ZooDefs.Ids.OPEN_ACL_UNSAFE)
+                .forPath(path + "/a/b", "bxi".getBytes());
+        Thread.sleep(1000);
+        //修改孙子节点
+        work.setData().forPath(path + "/a/b", "b".getBytes());
+        Thread.sleep(1000);
+        System.out.println("cached: " + cache.size() + " children of a: " + cache.getCurrentChildren(path + "/a").keySet());
+        //递归删除子节点，先通知孙子节点的删除
+        work.delete().deletingChildrenIfNeeded().forPath(path + "/a");
+        Thread.sleep(1000);
+        cache.close();
+        work.close();
+    }
+
+    public static void testParallelDispatch() throws Exception {
+        CuratorFramework work = getWork();
+        String path = "/demo/dispatch";
+        work.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT).withACL(ZooDefs.Ids.OPEN_ACL_UNSAFE)
+                .forPath(path + "/slow", "0".getBytes());
+        work.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT).withACL(ZooDefs.Ids.OPEN_ACL_UNSAFE)
+                .forPath(path + "/fast", "0".getBytes());
+        //4个线程，最多排队100个事件，合并同一节点的更新
+        ParallelEventDispatcher dispatcher = new ParallelEventDispatcher(4, 100, true);
+        PathChildrenCache cache = new PathChildrenCache(work, path, true);
+        cache.getListenable().addListener(dispatcher.wrapChildren(new PathChildrenCacheListener() {
+            @Override
+            public void childEvent(CuratorFramework curatorFramework, PathChildrenCacheEvent pathChildrenCacheEvent)
+                    throws Exception {
+                String child = pathChildrenCacheEvent.getData().getPath();
+                //slow节点的监听很慢，不影响fast节点的事件
+                if (child.endsWith("slow")) {
+                    Thread.sleep(300);
+                }
+                System.out.println(System.currentTimeMillis() + " " + Thread.currentThread().getName() + " type: "
+                        + pathChildrenCacheEvent.getType() + " path: " + child + " data: "
+                        + PayloadCodec.decodeString(pathChildrenCacheEvent.getData().getData()));
+            }
+        }));
+        cache.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+
+        for (int i = 1; i <= 10; i++) {
+            work.setData().forPath(path + "/slow", String.valueOf(i).getBytes());
+            work.setData().forPath(path + "/fast", String.valueOf(i).getBytes());
+            Thread.sleep(50);
+        }
+        Thread.sleep(2000);
+        System.out.println("coalesced: " + dispatcher.getCoalesced());
+        cache.close();
+        dispatcher.close();
+        work.delete().deletingChildrenIfNeeded().forPath(path);
+        work.close();
+    }
+
     public static void main(String[] args) throws Exception {
 //        testNodeCache();
         testPathChildrenCache();
@@ -7,10 +7,12 @@ import org.apache.curator.framework.api.CuratorEvent;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.retry.RetryOneTime;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.ZooDefs;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CuratorDemo {
     /**
@@ -55,7 +57,7 @@ public class CuratorDemo {
     }
 
     public static void testBackOper() throws Exception {
-        CuratorFramework work = getWork();
+        final CuratorFramework work = getWork();
         System.out.println("main thread:" + Thread.currentThread().getName());
         //异步的方式创建节点
         work.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT).withACL(ZooDefs.Ids.OPEN_ACL_UNSAFE)
@@ -71,9 +73,55 @@ public class CuratorDemo {
                 }).forPath("/demobackground");
         Thread.sleep(3000);
 
+        //批量异步创建、删除：同时在途不超过32个，两个调用方各自最多排队100个，轮流发出
+        final BackgroundOperationExecutor executor = new BackgroundOperationExecutor(32, 100);
+        final CountDownLatch latch = new CountDownLatch(2000);
+        final AtomicInteger errors = new AtomicInteger();
+        BackgroundCallback callback = new BackgroundCallback() {
+            @Override
+            public void processResult(CuratorFramework curatorFramework, CuratorEvent curatorEvent) throws Exception {
+                if (curatorEvent.getResultCode() != KeeperException.Code.OK.intValue()) {
+                    errors.incrementAndGet();
+                }
+                latch.countDown();
+            }
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            for (final String caller : new String[]{"a", "b"}) {
+                final String path = "/demobackground/" + caller + i;
+                executor.submit(caller, new BackgroundOperationExecutor.Operation() {
+                    @Override
+                    public void execute(BackgroundCallback callback) throws Exception {
+                        work.create().withMode(CreateMode.PERSISTENT).inBackground(callback).forPath(path);
+                    }
+                }, callback);
+            }
+        }
+        latch.await();
+        System.out.println("created:2000 errors:" + errors.get() + " max in flight:" + executor.getMaxObserved()
+                + " cost:" + (System.currentTimeMillis() - begin) + "ms");
+
+        //不等待的提交，队列满时直接拒绝
+        int accepted = 0;
+        for (int i = 0; i < 1000; i++) {
+            for (final String caller : new String[]{"a", "b"}) {
+                final String path = "/demobackground/" + caller + i;
+                if (executor.trySubmit(caller, new BackgroundOperationExecutor.Operation() {
+                    @Override
+                    public void execute(BackgroundCallback callback) throws Exception {
+                        work.delete().inBackground(callback).forPath(path);
+                    }
+                }, null, 0, TimeUnit.MILLISECONDS)) {
+                    accepted++;
+                }
+            }
+        }
+        executor.awaitIdle(1, TimeUnit.MINUTES);
+        System.out.println("delete accepted:" + accepted + " rejected:" + executor.getRejected());
+
         //异步删除节点
-        @SuppressWarnings("AlibabaThreadPoolCreation")
-        ExecutorService executorService = Executors.newFixedThreadPool(10);
+        final CountDownLatch deleted = new CountDownLatch(1);
         work.delete().deletingChildrenIfNeeded().withVersion(-1).inBackground(new BackgroundCallback() {
             @Override
             public void processResult(CuratorFramework curatorFramework, CuratorEvent curatorEvent) throws Exception {
@@ -81,15 +129,50 @@ public class CuratorDemo {
                 System.out.println("context:" + curatorEvent.getContext());
                 System.out.println("thread id:" + Thread.currentThread().getId() + " thread name:" + Thread
                         .currentThread().getName());
+                deleted.countDown();
             }
-        }, "test context", executorService).forPath("/demobackgroud");
-        Thread.sleep(3000);
-
-        executorService.shutdown();
+        }, "test context").forPath("/demobackground");
+        deleted.await();
+        work.close();
     }
 
     public static void testTransaction() throws Exception {
         CuratorFramework work = getWork();
+        //批量创建3000个节点，每个节点1KB数据，按jute.maxbuffer自动分成几个事务
+        byte[] data = new byte[1024];
+        ChunkedTransaction create = new ChunkedTransaction(work);
+        create.create("/tx", new byte[0]);
+        for (int i = 0; i < 3000; i++) {
+            create.create("/tx/node" + i, data);
+        }
+        long begin = System.currentTimeMillis();
+        ChunkedTransaction.Report report = create.commit();
+        System.out.println("success:" + report.isSuccess() + " ops:" + report.getOutcomes().size() + " chunks:"
+                + report.getChunkStarts() + " cost:" + (System.currentTimeMillis() - begin) + "ms");
+
+        //第二段中的check失败：第一段已提交，第二段回滚，第三段不执行
+        ChunkedTransaction update = new ChunkedTransaction(work, 2 * 1024);
+        for (int i = 0; i < 150; i++) {
+            if (i == 80) {
+                update.check("/tx/node" + i, 5);
+            }
+            update.setData("/tx/node" + i, "updated".getBytes());
+        }
+        report = update.commit();
+        System.out.println("success:" + report.isSuccess() + " chunks:" + report.getChunkStarts() + " committed:"
+                + report.getCommitted() + " failed:" + report.getOutcomes().get(report.getFailedIndex()));
+        System.out.println("first:" + report.getOutcomes().get(0) + " last:"
+                + report.getOutcomes().get(report.getOutcomes().size() - 1));
+
+        //删除，子节点在父节点之前
+        ChunkedTransaction delete = new ChunkedTransaction(work);
+        for (int i = 0; i < 3000; i++) {
+            delete.delete("/tx/node" + i);
+        }
+        delete.delete("/tx");
+        report = delete.commit();
+        System.out.println("success:" + report.isSuccess() + " chunks:" + report.getChunkStarts().size());
+        work.close();
     }
 
     public static void testDeleteNode() throws Exception {
@@ -0,0 +1,398 @@
+package demo.curator;
+
+import org.apache.zookeeper.data.Stat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 按列保存的节点树
+ * 每个节点是一个int编号，父子关系、Stat的各个字段分别保存在基本类型数组中；
+ * 节点只保存自己的名称，完整路径由父节点链拼出，相同前缀只存一份；名称和数据写入{@link Slab}。
+ * 子节点通过 (父节点编号, 名称) 在一张开放寻址的int哈希表中查找，不为每个节点创建Map。
+ * 不是线程安全的，由调用方加锁
+ */
+class NodeTable {
+    /**
+     * 空节点编号
+     */
+    static final int NO_NODE = -1;
+    /**
+     * 数据未缓存
+     */
+    private static final int NOT_CACHED = -1;
+
+    private int capacity = 1024;
+    /**
+     * 已使用过的最大编号+1
+     */
+    private int limit;
+    private int size;
+    /**
+     * 已删除节点的编号，通过nextSibling串成链表复用
+     */
+    private int freeHead = NO_NODE;
+    private int root = NO_NODE;
+
+    private int[] parent = new int[capacity];
+    private int[] firstChild = new int[capacity];
+    private int[] nextSibling = new int[capacity];
+    private int[] prevSibling = new int[capacity];
+    private int[] nameHash = new int[capacity];
+    private int[] nameLength = new int[capacity];
+    private long[] nameRef = new long[capacity];
+    private int[] dataLength = new int[capacity];
+    private long[] dataRef = new long[capacity];
+
+    private long[] czxid = new long[capacity];
+    private long[] mzxid = new long[capacity];
+    private long[] pzxid = new long[capacity];
+    private long[] ctime = new long[capacity];
+    private long[] mtime = new long[capacity];
+    private long[] ephemeralOwner = new long[capacity];
+    private int[] version = new int[capacity];
+    private int[] cversion = new int[capacity];
+    private int[] aversion = new int[capacity];
+    private int[] statDataLength = new int[capacity];
+    private int[] numChildren = new int[capacity];
+
+    /**
+     * 子节点哈希表，保存节点编号+1，0表示空位
+     */
+    private int[] slots = new int[2048];
+    private int slotCount;
+
+    private Slab names = new Slab();
+    private Slab data = new Slab();
+
+    int root() {
+        return root;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 名称和数据占用的字节数
+     */
+    long slabBytes() {
+        return names.allocatedBytes() + data.allocatedBytes();
+    }
+
+    /**
+     * 按完整路径查找节点
+     *
+     * @param rootPath 根节点的路径
+     * @param path     节点路径
+     */
+    int find(String rootPath, String path) {
+        if (root == NO_NODE || !path.startsWith(rootPath)) {
+            return NO_NODE;
+        }
+        if (path.length() == rootPath.length()) {
+            return root;
+        }
+        int begin = rootPath.length();
+        if (!rootPath.endsWith("/")) {
+            if (path.charAt(begin) != '/') {
+                return NO_NODE;
+            }
+            begin++;
+        }
+        int id = root;
+        while (id != NO_NODE && begin <= path.length()) {
+            int end = path.indexOf('/', begin);
+            if (end < 0) {
+                end = path.length();
+            }
+            id = child(id, path.substring(begin, end).getBytes(StandardCharsets.UTF_8));
+            begin = end + 1;
+        }
+        return id;
+    }
+
+    /**
+     * 查找子节点
+     */
+    int child(int parentId, byte[] name) {
+        int hash = hash(name);
+        int mask = slots.length - 1;
+        for (int i = slot(parentId, hash); slots[i] != 0; i = (i + 1) & mask) {
+            int id = slots[i] - 1;
+            if (parent[id] == parentId && nameHash[id] == hash && names.equals(nameRef[id], nameLength[id], name)) {
+                return id;
+            }
+        }
+        return NO_NODE;
+    }
+
+    /**
+     * 添加节点
+     *
+     * @param parentId 父节点编号，添加根节点时为{@link #NO_NODE}
+     * @param name     节点名称，根节点为完整路径
+     */
+    int add(int parentId, byte[] name) {
+        int id = allocate();
+        parent[id] = parentId;
+        firstChild[id] = NO_NODE;
+        prevSibling[id] = NO_NODE;
+        nameHash[id] = hash(name);
+        nameLength[id] = name.length;
+        nameRef[id] = names.put(name);
+        dataLength[id] = NOT_CACHED;
+        dataRef[id] = Slab.EMPTY;
+        if (parentId == NO_NODE) {
+            nextSibling[id] = NO_NODE;
+            root = id;
+        } else {
+            nextSibling[id] = firstChild[parentId];
+            if (firstChild[parentId] != NO_NODE) {
+                prevSibling[firstChild[parentId]] = id;
+            }
+            firstChild[parentId] = id;
+            insertSlot(id);
+        }
+        size++;
+        return id;
+    }
+
+    /**
+     * 删除没有子节点的节点
+     */
+    void remove(int id) {
+        if (firstChild[id] != NO_NODE) {
+            throw new IllegalStateException("node has children: " + id);
+        }
+        int parentId = parent[id];
+        if (parentId == NO_NODE) {
+            root = NO_NODE;
+        } else {
+            removeSlot(id);
+            if (prevSibling[id] != NO_NODE) {
+                nextSibling[prevSibling[id]] = nextSibling[id];
+            } else {
+                firstChild[parentId] = nextSibling[id];
+            }
+            if (nextSibling[id] != NO_NODE) {
+                prevSibling[nextSibling[id]] = prevSibling[id];
+            }
+        }
+        names.free(nameRef[id], nameLength[id]);
+        if (dataLength[id] > 0) {
+            data.free(dataRef[id], dataLength[id]);
+        }
+        parent[id] = NO_NODE;
+        nextSibling[id] = freeHead;
+        freeHead = id;
+        size--;
+        compactIfWasteful();
+    }
+
+    int parent(int id) {
+        return parent[id];
+    }
+
+    int firstChild(int id) {
+        return firstChild[id];
+    }
+
+    int nextSibling(int id) {
+        return nextSibling[id];
+    }
+
+    String name(int id) {
+        return new String(names.get(nameRef[id], nameLength[id]), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 由父节点链拼出完整路径
+     */
+    String path(int id) {
+        if (id == root) {
+            return name(id);
+        }
+        String parentPath = path(parent[id]);
+        return parentPath.endsWith("/") ? parentPath + name(id) : parentPath + "/" + name(id);
+    }
+
+    long mzxid(int id) {
+        return mzxid[id];
+    }
+
+    void setStat(int id, Stat stat) {
+        czxid[id] = stat.getCzxid();
+        mzxid[id] = stat.getMzxid();
+        pzxid[id] = stat.getPzxid();
+        ctime[id] = stat.getCtime();
+        mtime[id] = stat.getMtime();
+        ephemeralOwner[id] = stat.getEphemeralOwner();
+        version[id] = stat.getVersion();
+        cversion[id] = stat.getCversion();
+        aversion[id] = stat.getAversion();
+        statDataLength[id] = stat.getDataLength();
+        numChildren[id] = stat.getNumChildren();
+    }
+
+    Stat stat(int id) {
+        return new Stat(czxid[id], mzxid[id], ctime[id], mtime[id], version[id], cversion[id], aversion[id],
+                ephemeralOwner[id], statDataLength[id], numChildren[id], pzxid[id]);
+    }
+
+    /**
+     * 更新节点数据
+     *
+     * @param bytes 节点数据，为空表示不缓存
+     */
+    void setData(int id, byte[] bytes) {
+        if (dataLength[id] > 0) {
+            data.free(dataRef[id], dataLength[id]);
+        }
+        if (bytes == null) {
+            dataLength[id] = NOT_CACHED;
+            dataRef[id] = Slab.EMPTY;
+        } else {
+            dataLength[id] = bytes.length;
+            dataRef[id] = data.put(bytes);
+        }
+        compactIfWasteful();
+    }
+
+    /**
+     * 节点数据，未缓存时返回空
+     */
+    byte[] data(int id) {
+        return dataLength[id] == NOT_CACHED ? null : data.get(dataRef[id], dataLength[id]);
+    }
+
+    private int allocate() {
+        if (freeHead != NO_NODE) {
+            int id = freeHead;
+            freeHead = nextSibling[id];
+            return id;
+        }
+        if (limit == capacity) {
+            grow();
+        }
+        return limit++;
+    }
+
+    /**
+     * 按1.5倍扩容，避免节点数刚过2的幂时列数组空出近一半
+     */
+    private void grow() {
+        capacity += capacity >> 1;
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        prevSibling = Arrays.copyOf(prevSibling, capacity);
+        nameHash = Arrays.copyOf(nameHash, capacity);
+        nameLength = Arrays.copyOf(nameLength, capacity);
+        nameRef = Arrays.copyOf(nameRef, capacity);
+        dataLength = Arrays.copyOf(dataLength, capacity);
+        dataRef = Arrays.copyOf(dataRef, capacity);
+        czxid = Arrays.copyOf(czxid, capacity);
+        mzxid = Arrays.copyOf(mzxid, capacity);
+        pzxid = Arrays.copyOf(pzxid, capacity);
+        ctime = Arrays.copyOf(ctime, capacity);
+        mtime = Arrays.copyOf(mtime, capacity);
+        ephemeralOwner = Arrays.copyOf(ephemeralOwner, capacity);
+        version = Arrays.copyOf(version, capacity);
+        cversion = Arrays.copyOf(cversion, capacity);
+        aversion = Arrays.copyOf(aversion, capacity);
+        statDataLength = Arrays.copyOf(statDataLength, capacity);
+        numChildren = Arrays.copyOf(numChildren, capacity);
+    }
+
+    /**
+     * 名称或数据的空洞过多时，把仍在使用的部分搬到新的块中
+     */
+    private void compactIfWasteful() {
+        if (names.wasteful()) {
+            Slab compacted = new Slab();
+            for (int id = 0; id < limit; id++) {
+                if (live(id)) {
+                    nameRef[id] = compacted.put(names.get(nameRef[id], nameLength[id]));
+                }
+            }
+            names = compacted;
+        }
+        if (data.wasteful()) {
+            Slab compacted = new Slab();
+            for (int id = 0; id < limit; id++) {
+                if (live(id) && dataLength[id] > 0) {
+                    dataRef[id] = compacted.put(data.get(dataRef[id], dataLength[id]));
+                }
+            }
+            data = compacted;
+        }
+    }
+
+    private boolean live(int id) {
+        return id == root || parent[id] != NO_NODE;
+    }
+
+    private static int hash(byte[] name) {
+        int h = 1;
+        for (byte b : name) {
+            h = 31 * h + b;
+        }
+        return h;
+    }
+
+    private int slot(int parentId, int hash) {
+        int h = hash * 0x9E3779B9 + parentId;
+        return (h ^ (h >>> 16)) & (slots.length - 1);
+    }
+
+    private void insertSlot(int id) {
+        if ((slotCount + 1) * 4 > slots.length * 3) {
+            int[] old = slots;
+            slots = new int[old.length * 2];
+            for (int entry : old) {
+                if (entry != 0) {
+                    place(entry);
+                }
+            }
+        }
+        place(id + 1);
+        slotCount++;
+    }
+
+    private void place(int entry) {
+        int mask = slots.length - 1;
+        int i = slot(parent[entry - 1], nameHash[entry - 1]);
+        while (slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i] = entry;
+    }
+
+    /**
+     * 线性探测的删除：把后面不在自己原位的项前移，不留墓碑
+     */
+    private void removeSlot(int id) {
+        int mask = slots.length - 1;
+        int i = slot(parent[id], nameHash[id]);
+        while (slots[i] != id + 1) {
+            i = (i + 1) & mask;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            int entry = slots[j];
+            if (entry == 0) {
+                break;
+            }
+            int home = slot(parent[entry - 1], nameHash[entry - 1]);
+            boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!between) {
+                slots[i] = entry;
+                i = j;
+            }
+        }
+        slots[i] = 0;
+        slotCount--;
+    }
+}
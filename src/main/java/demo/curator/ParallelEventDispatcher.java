@@ -0,0 +1,260 @@
+package demo.curator;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.NodeCacheListener;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
+import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 缓存事件的并行分发
+ * 缓存的监听默认都在一个线程中执行，一个慢监听会拖住所有节点的事件。
+ * 经过{@link #wrapTree}、{@link #wrapChildren}、{@link #wrapNode}包装后，事件按节点路径进入各自的队列，由线程池并行执行：
+ * 同一路径的事件严格按顺序执行，不同路径互不阻塞。
+ * 只保证同一路径内的顺序：父子节点等不同路径的事件可能与发生顺序不同，如子节点的NODE_ADDED先于父节点的NODE_ADDED执行；
+ * 没有节点路径的事件（INITIALIZED、连接状态变化等）进入路径为""的单独队列，相互之间有序，但与节点事件之间没有先后保证。
+ * 排队的事件总数有上限，达到上限时缓存线程在提交处阻塞，把压力传回缓存。
+ * 开启合并后，同一路径排队中的连续更新事件只保留最新的一个
+ */
+public class ParallelEventDispatcher {
+    /**
+     * 一个路径每次最多连续执行的事件数，之后让出线程给其他路径
+     */
+    private static final int BATCH = 16;
+    /**
+     * 连接状态等不属于某个节点的事件使用的路径
+     */
+    private static final String NO_PATH = "";
+
+    private final ExecutorService pool;
+    private final Semaphore permits;
+    private final boolean coalesce;
+    /**
+     * 路径 -> 待执行的事件，所有访问在该对象上加锁
+     */
+    private final Map<String, PathQueue> queues = new HashMap<String, PathQueue>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param threads  工作线程数
+     * @param capacity 排队事件的上限
+     * @param coalesce 是否合并同一路径排队中的更新事件
+     */
+    public ParallelEventDispatcher(int threads, int capacity, boolean coalesce) {
+        final AtomicInteger index = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cache-dispatcher-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.permits = new Semaphore(capacity);
+        this.coalesce = coalesce;
+    }
+
+    /**
+     * 提交一个事件
+     *
+     * @param path      事件所属的节点路径
+     * @param mergeable 是否为可合并的更新事件
+     * @param task      事件处理
+     */
+    public void dispatch(String path, boolean mergeable, Runnable task) throws InterruptedException {
+        if (coalesce && mergeable) {
+            synchronized (queues) {
+                PathQueue queue = queues.get(path);
+                if (queue != null && queue.replaceLast(task)) {
+                    coalesced.incrementAndGet();
+                    return;
+                }
+            }
+        }
+        //排队已满时阻塞提交线程
+        permits.acquire();
+        synchronized (queues) {
+            PathQueue queue = queues.get(path);
+            if (queue == null) {
+                queue = new PathQueue(path);
+                queues.put(path, queue);
+            }
+            queue.tasks.addLast(new Task(task, mergeable));
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                pool.execute(queue);
+            }
+        }
+    }
+
+    /**
+     * 包装树缓存监听，NODE_UPDATED可合并
+     */
+    public TreeCacheListener wrapTree(final TreeCacheListener listener) {
+        return new TreeCacheListener() {
+            @Override
+            public void childEvent(final CuratorFramework client, final TreeCacheEvent event) throws Exception {
+                String path = event.getData() == null ? NO_PATH : event.getData().getPath();
+                dispatch(path, event.getType() == TreeCacheEvent.Type.NODE_UPDATED, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            listener.childEvent(client, event);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * 包装子节点缓存监听，CHILD_UPDATED可合并
+     */
+    public PathChildrenCacheListener wrapChildren(final PathChildrenCacheListener listener) {
+        return new PathChildrenCacheListener() {
+            @Override
+            public void childEvent(final CuratorFramework client, final PathChildrenCacheEvent event) throws Exception {
+                String path = event.getData() == null ? NO_PATH : event.getData().getPath();
+                dispatch(path, event.getType() == PathChildrenCacheEvent.Type.CHILD_UPDATED, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            listener.childEvent(client, event);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * 包装节点缓存监听，节点缓存的事件都是变化通知，监听者自己读取当前数据，都可合并
+     *
+     * @param path 缓存的节点路径
+     */
+    public NodeCacheListener wrapNode(final String path, final NodeCacheListener listener) {
+        return new NodeCacheListener() {
+            @Override
+            public void nodeChanged() throws Exception {
+                dispatch(path, true, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            listener.nodeChanged();
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * 被合并掉的事件数
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * 排队中的事件数
+     */
+    public int getQueued() {
+        synchronized (queues) {
+            int queued = 0;
+            for (PathQueue queue : queues.values()) {
+                queued += queue.tasks.size();
+            }
+            return queued;
+        }
+    }
+
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private static class Task {
+        final Runnable runnable;
+        final boolean mergeable;
+
+        Task(Runnable runnable, boolean mergeable) {
+            this.runnable = runnable;
+            this.mergeable = mergeable;
+        }
+    }
+
+    /**
+     * 一个路径的事件队列，同一时间最多在一个线程中执行
+     */
+    private class PathQueue implements Runnable {
+        final String path;
+        final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+        /**
+         * 是否已提交到线程池
+         */
+        boolean scheduled;
+
+        PathQueue(String path) {
+            this.path = path;
+        }
+
+        /**
+         * 最后一个排队事件可合并时替换为新的事件
+         */
+        boolean replaceLast(Runnable runnable) {
+            Task last = tasks.peekLast();
+            if (last == null || !last.mergeable) {
+                return false;
+            }
+            tasks.pollLast();
+            tasks.addLast(new Task(runnable, true));
+            return true;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH; i++) {
+                Task task;
+                synchronized (queues) {
+                    task = tasks.pollFirst();
+                    if (task == null) {
+                        scheduled = false;
+                        queues.remove(path);
+                        return;
+                    }
+                }
+                permits.release();
+                try {
+                    task.runnable.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            synchronized (queues) {
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    queues.remove(path);
+                    return;
+                }
+            }
+            //还有事件，重新排队，避免长时间占用线程
+            pool.execute(this);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package demo.curator;
+
+import java.util.Arrays;
+
+/**
+ * 字节块分配器
+ * 把大量小字节数组顺序写入1MB的大块中，用一个long地址（块序号&lt;&lt;32 | 块内偏移）引用，
+ * 百万个节点的名称和数据只对应几百个数组对象，GC不需要逐个扫描。
+ * 块内的数据全部释放后整块回收；零散释放造成的空洞由使用方在浪费过多时整体搬迁（见{@link #wasteful()}）
+ */
+class Slab {
+    /**
+     * 空数据的地址
+     */
+    static final long EMPTY = -1;
+    /**
+     * 块大小
+     */
+    private static final int CHUNK_SIZE = 1 << 20;
+    /**
+     * 超过该大小的数据单独占用一个块
+     */
+    private static final int LARGE_SIZE = CHUNK_SIZE / 4;
+
+    private byte[][] chunks = new byte[8][];
+    /**
+     * 每个块中仍在使用的字节数
+     */
+    private int[] live = new int[8];
+    /**
+     * 已回收的块序号
+     */
+    private int[] freeChunks = new int[8];
+    private int freeCount;
+    /**
+     * 已使用过的最大块序号+1
+     */
+    private int chunkCount;
+    /**
+     * 正在顺序写入的块
+     */
+    private int current = -1;
+    private int position;
+    /**
+     * 仍在使用的字节数
+     */
+    private long usedBytes;
+    /**
+     * 已分配的块的总字节数
+     */
+    private long allocatedBytes;
+
+    /**
+     * 写入数据
+     *
+     * @return 数据地址，空数据返回{@link #EMPTY}
+     */
+    long put(byte[] bytes) {
+        int length = bytes.length;
+        if (length == 0) {
+            return EMPTY;
+        }
+        int chunk;
+        int offset;
+        if (length > LARGE_SIZE) {
+            chunk = newChunk(length);
+            offset = 0;
+        } else {
+            if (current < 0 || position + length > CHUNK_SIZE) {
+                int previous = current;
+                current = newChunk(CHUNK_SIZE);
+                position = 0;
+                //写满的块如果已经没有数据在用，直接回收
+                if (previous >= 0 && live[previous] == 0) {
+                    releaseChunk(previous);
+                }
+            }
+            chunk = current;
+            offset = position;
+            position += length;
+        }
+        System.arraycopy(bytes, 0, chunks[chunk], offset, length);
+        live[chunk] += length;
+        usedBytes += length;
+        return ((long) chunk << 32) | offset;
+    }
+
+    /**
+     * 释放数据
+     */
+    void free(long address, int length) {
+        if (address == EMPTY) {
+            return;
+        }
+        int chunk = (int) (address >>> 32);
+        live[chunk] -= length;
+        usedBytes -= length;
+        if (live[chunk] == 0 && chunk != current) {
+            releaseChunk(chunk);
+        }
+    }
+
+    /**
+     * 读取数据
+     */
+    byte[] get(long address, int length) {
+        byte[] bytes = new byte[length];
+        if (address != EMPTY) {
+            System.arraycopy(chunks[(int) (address >>> 32)], (int) address, bytes, 0, length);
+        }
+        return bytes;
+    }
+
+    /**
+     * 比较地址处的数据是否与给定数据相同
+     */
+    boolean equals(long address, int length, byte[] bytes) {
+        if (length != bytes.length) {
+            return false;
+        }
+        if (address == EMPTY) {
+            return true;
+        }
+        byte[] chunk = chunks[(int) (address >>> 32)];
+        int offset = (int) address;
+        for (int i = 0; i < length; i++) {
+            if (chunk[offset + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 空洞是否过多，已分配的块超过使用量的两倍且多出4个块以上时返回true
+     */
+    boolean wasteful() {
+        return allocatedBytes - usedBytes > Math.max(usedBytes, 4L * CHUNK_SIZE);
+    }
+
+    long usedBytes() {
+        return usedBytes;
+    }
+
+    long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private int newChunk(int size) {
+        int chunk;
+        if (freeCount > 0) {
+            chunk = freeChunks[--freeCount];
+        } else {
+            chunk = chunkCount++;
+            if (chunk == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunk * 2);
+                live = Arrays.copyOf(live, chunk * 2);
+            }
+        }
+        chunks[chunk] = new byte[size];
+        live[chunk] = 0;
+        allocatedBytes += size;
+        return chunk;
+    }
+
+    private void releaseChunk(int chunk) {
+        allocatedBytes -= chunks[chunk].length;
+        chunks[chunk] = null;
+        if (freeCount == freeChunks.length) {
+            freeChunks = Arrays.copyOf(freeChunks, freeCount * 2);
+        }
+        freeChunks[freeCount++] = chunk;
+    }
+}
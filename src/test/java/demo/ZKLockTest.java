@@ -1,5 +1,9 @@
 package demo;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
 public class ZKLockTest {
     public static Integer i = 0;
 
@@ -31,7 +35,127 @@ public class ZKLockTest {
         }
     }
 
-    public static void main(String[] args) {
-        testLock();
+    public static void testCohortLock() {
+        ZKLock lock = ZKLock.getCohortInstance();
+        for (int i = 0; i < 1000; i++) {
+            new TestThread(lock).start();
+        }
+    }
+
+    public static void testAsyncLock() {
+        final ZKLock lock = ZKLock.getInstance();
+        for (int n = 0; n < 1000; n++) {
+            lock.lockAsync("tl").thenAccept(new Consumer<String>() {
+                @Override
+                public void accept(String currSeq) {
+                    i++;
+                    System.out.println(System.currentTimeMillis() + " " + currSeq + " result: " + i);
+                    lock.unLock("tl", currSeq);
+                }
+            });
+        }
+    }
+
+    public static void testTryLockTimeout() throws InterruptedException {
+        final ZKLock lock = ZKLock.getInstance();
+        lock.lock("tl");
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    //超时后应删除自己的临时节点
+                    System.out.println("tryLock: " + lock.tryLock("tl", 1, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        waiter.start();
+        waiter.join();
+        lock.unLock("tl");
+    }
+
+    public static void testReentrantLock() {
+        ZKLock lock = ZKLock.getInstance();
+        lock.lock("tl");
+        //重入不再创建临时节点
+        lock.lock("tl");
+        i++;
+        lock.unLock("tl");
+        lock.unLock("tl");
+        System.out.println("result: " + i);
+    }
+
+    /**
+     * 所有权模式
+     * 两个实例各用一个会话，模拟两个进程争用同一批资源：绝大多数加锁在本地完成，只有所有权转移时访问zk，
+     * 任一时刻每个资源最多一个持有者
+     */
+    public static void testOwnershipLock() throws InterruptedException {
+        final ZKOwnershipLock[] owners = {new ZKOwnershipLock(4, 100, TimeUnit.MILLISECONDS),
+                new ZKOwnershipLock(4, 100, TimeUnit.MILLISECONDS)};
+        final AtomicInteger[] holders = new AtomicInteger[8];
+        for (int n = 0; n < holders.length; n++) {
+            holders[n] = new AtomicInteger();
+        }
+        final AtomicInteger violations = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        long begin = System.currentTimeMillis();
+        for (int t = 0; t < threads.length; t++) {
+            final ZKOwnershipLock owner = owners[t % 2];
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 20000; n++) {
+                        int res = n % holders.length;
+                        owner.lock("res" + res);
+                        if (!holders[res].compareAndSet(0, 1)) {
+                            violations.incrementAndGet();
+                        }
+                        holders[res].set(0);
+                        owner.unLock("res" + res);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int n = 0; n < owners.length; n++) {
+            System.out.println("owner" + n + " local grants: " + owners[n].getLocalGrants() + " claims: "
+                    + owners[n].getClaims() + " handoffs: " + owners[n].getHandoffs());
+        }
+        System.out.println("violations: " + violations.get() + " cost: " + (System.currentTimeMillis() - begin) + "ms");
+        for (ZKOwnershipLock owner : owners) {
+            owner.close();
+        }
+    }
+
+    /**
+     * 不带参数时运行testLock，参数选择其他场景：cohort、async、timeout、reentrant、ownership
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String scenario = args.length > 0 ? args[0] : "lock";
+        switch (scenario) {
+            case "cohort":
+                testCohortLock();
+                break;
+            case "async":
+                testAsyncLock();
+                break;
+            case "timeout":
+                testTryLockTimeout();
+                break;
+            case "reentrant":
+                testReentrantLock();
+                break;
+            case "ownership":
+                testOwnershipLock();
+                break;
+            default:
+                testLock();
+                break;
+        }
     }
 }
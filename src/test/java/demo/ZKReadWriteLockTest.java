@@ -0,0 +1,91 @@
+package demo;
+
+public class ZKReadWriteLockTest {
+    public static Integer i = 0;
+
+    static class ReadThread extends Thread {
+        private ZKReadWriteLock lock;
+
+        @Override
+        public void run() {
+            lock.lockRead("rw");
+            log(" read: " + i);
+            lock.unLockRead("rw");
+        }
+
+        public ReadThread(ZKReadWriteLock lock) {
+            this.lock = lock;
+        }
+    }
+
+    static class WriteThread extends Thread {
+        private ZKReadWriteLock lock;
+
+        @Override
+        public void run() {
+            lock.lockWrite("rw");
+            i++;
+            log(" write: " + i);
+            lock.unLockWrite("rw");
+        }
+
+        public WriteThread(ZKReadWriteLock lock) {
+            this.lock = lock;
+        }
+    }
+
+    private static void log(String mess) {
+        System.out.println(System.currentTimeMillis() + " " + Thread.currentThread().getId() + mess);
+    }
+
+    public static void testReadWriteLock() {
+        ZKReadWriteLock lock = ZKReadWriteLock.getInstance();
+        for (int n = 0; n < 1000; n++) {
+            if (n % 10 == 0) {
+                new WriteThread(lock).start();
+            } else {
+                new ReadThread(lock).start();
+            }
+        }
+    }
+
+    /**
+     * 降级：持有写锁时加读锁直接成功，释放写锁后其他线程的写锁要等读锁释放
+     */
+    public static void testDowngrade() throws InterruptedException {
+        final ZKReadWriteLock lock = ZKReadWriteLock.getInstance();
+        lock.lockWrite("rw");
+        lock.lockRead("rw");
+        i++;
+        lock.unLockWrite("rw");
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                lock.lockWrite("rw");
+                log(" write after downgrade: " + i);
+                lock.unLockWrite("rw");
+            }
+        };
+        writer.start();
+        writer.join(500);
+        log(" read while writer waits: " + i + " writer alive: " + writer.isAlive());
+        lock.unLockRead("rw");
+        writer.join();
+        try {
+            lock.lockRead("rw");
+            lock.lockWrite("rw");
+        } catch (IllegalMonitorStateException e) {
+            log(" " + e.getMessage());
+        } finally {
+            lock.unLockRead("rw");
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 0 && args[0].equals("downgrade")) {
+            testDowngrade();
+        } else {
+            testReadWriteLock();
+        }
+    }
+}
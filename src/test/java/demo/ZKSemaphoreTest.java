@@ -0,0 +1,93 @@
+package demo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ZKSemaphoreTest {
+    static class WorkThread extends Thread {
+        private ZKSemaphore semaphore;
+        private AtomicInteger inUse;
+        private AtomicInteger maxInUse;
+
+        @Override
+        public void run() {
+            for (int n = 0; n < 50; n++) {
+                try {
+                    semaphore.acquire();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                int current = inUse.incrementAndGet();
+                int max = maxInUse.get();
+                while (current > max && !maxInUse.compareAndSet(max, current)) {
+                    max = maxInUse.get();
+                }
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                inUse.decrementAndGet();
+                semaphore.release();
+            }
+        }
+
+        public WorkThread(ZKSemaphore semaphore, AtomicInteger inUse, AtomicInteger maxInUse) {
+            this.semaphore = semaphore;
+            this.inUse = inUse;
+            this.maxInUse = maxInUse;
+        }
+    }
+
+    private static void log(String mess) {
+        System.out.println(System.currentTimeMillis() + " " + Thread.currentThread().getId() + mess);
+    }
+
+    /**
+     * 两个实例各用一个会话，模拟两个进程共用5个许可，每个进程每次申请2个，同时使用的许可数不超过5
+     */
+    public static void testSemaphore() throws InterruptedException {
+        ZKSemaphore[] semaphores = {new ZKSemaphore("sem", 5, 2), new ZKSemaphore("sem", 5, 2)};
+        AtomicInteger inUse = new AtomicInteger();
+        AtomicInteger maxInUse = new AtomicInteger();
+        Thread[] threads = new Thread[20];
+        for (int n = 0; n < threads.length; n++) {
+            threads[n] = new WorkThread(semaphores[n % 2], inUse, maxInUse);
+            threads[n].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        log(" max in use: " + maxInUse.get());
+        for (ZKSemaphore semaphore : semaphores) {
+            semaphore.close();
+        }
+    }
+
+    /**
+     * 租约被另一个进程占满时限时获取超时，不遗留租约节点
+     */
+    public static void testTryAcquireTimeout() throws InterruptedException {
+        ZKSemaphore holder = new ZKSemaphore("sem", 5, 5);
+        ZKSemaphore waiter = new ZKSemaphore("sem", 5, 1);
+        holder.acquire();
+        log(" tryAcquire: " + waiter.tryAcquire(1, TimeUnit.SECONDS));
+        holder.release();
+        log(" tryAcquire after release: " + waiter.tryAcquire(1, TimeUnit.SECONDS));
+        waiter.release();
+        holder.close();
+        waiter.close();
+    }
+
+    /**
+     * 不带参数时运行testSemaphore，参数timeout运行testTryAcquireTimeout
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 0 && args[0].equals("timeout")) {
+            testTryAcquireTimeout();
+        } else {
+            testSemaphore();
+        }
+    }
+}
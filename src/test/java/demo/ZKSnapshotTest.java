@@ -0,0 +1,68 @@
+package demo;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ZKSnapshotTest {
+    private static void log(String mess) {
+        System.out.println(System.currentTimeMillis() + " " + Thread.currentThread().getId() + " " + mess);
+    }
+
+    /**
+     * 导出子树后修改少量节点，加载快照对齐时只应获取变化的部分
+     */
+    public static void testSnapshot() throws Exception {
+        ZooKeeper zk = new ZooKeeper(ZookeeperDemo.ADDRESS, 5000, null);
+        ZKBulkClient bulk = new ZKBulkClient(zk);
+        File file = File.createTempFile("zksnapshot", ".bin");
+        Map<String, byte[]> nodes = new LinkedHashMap<String, byte[]>();
+        nodes.put("/snapshot", new byte[0]);
+        for (int i = 0; i < 10; i++) {
+            nodes.put("/snapshot/group_" + i, ("group" + i).getBytes());
+            for (int j = 0; j < 100; j++) {
+                nodes.put("/snapshot/group_" + i + "/config_" + j, ("value" + j).getBytes());
+            }
+        }
+        try {
+            bulk.createAll(nodes, CreateMode.PERSISTENT);
+            ZKSnapshot exported = ZKSnapshot.export(zk, "/snapshot", file);
+            log("export: " + exported.size() + " nodes, file: " + file.length() + " bytes");
+
+            //修改一个节点，删除一个节点，新增一个节点
+            zk.setData("/snapshot/group_1/config_1", "changed".getBytes(), -1);
+            zk.delete("/snapshot/group_2/config_2", -1);
+            zk.create("/snapshot/group_3/config_new", "new".getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+
+            ZKSnapshot loaded = ZKSnapshot.load(file);
+            log("load: " + loaded.size() + " nodes, equal: " + (loaded.size() == exported.size()) + ", data: "
+                    + new String(loaded.getNode("/snapshot/group_9/config_99").getData()));
+            ZKSnapshot synced = loaded.sync(zk);
+            //期望：数据获取2个（修改的和新增的），子节点获取3个（group_2、group_3和新增的节点）
+            log("sync: " + synced.size() + " nodes, data fetched: " + synced.getDataFetches()
+                    + ", children fetched: " + synced.getChildrenFetches());
+            log("changed: " + new String(synced.getNode("/snapshot/group_1/config_1").getData())
+                    + ", deleted: " + (synced.getNode("/snapshot/group_2/config_2") == null)
+                    + ", created: " + new String(synced.getNode("/snapshot/group_3/config_new").getData()));
+        } finally {
+            List<String> paths = new ArrayList<String>(nodes.keySet());
+            paths.add("/snapshot/group_3/config_new");
+            Collections.reverse(paths);
+            bulk.deleteAll(paths);
+            zk.close();
+            file.delete();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        testSnapshot();
+    }
+}